@@ -0,0 +1,131 @@
+package com.bkcd.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result carries its allocation per
+ * operation next to its time. Results can be saved as a baseline or compared against one.
+ *
+ *   java -jar target/benchmarks.jar [regex...] [--save baselines/baseline.tsv] [--compare baselines/baseline.tsv]
+ *
+ * A comparison fails when the time or allocation of any benchmark grew by more than the threshold
+ * on top of the baseline's error margin. Baselines are only comparable when recorded on the same machine.
+ */
+public class BenchmarkRunner {
+    private static final double THRESHOLD = 0.10;
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    record Measurement(double score, double error, String unit, double allocatedBytes) {}
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        List<String> includes = new ArrayList<>();
+        Path save = null;
+        Path compare = null;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("--save") && i + 1 < args.length) {
+                save = Path.of(args[++i]);
+            } else if(args[i].equals("--compare") && i + 1 < args.length) {
+                compare = Path.of(args[++i]);
+            } else {
+                includes.add(args[i]);
+            }
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().addProfiler(GCProfiler.class);
+        if(includes.isEmpty()) includes.add(BenchmarkRunner.class.getPackageName() + ".*");
+        includes.forEach(options::include);
+
+        Map<String, Measurement> results = collect(new Runner(options.build()).run());
+
+        if(save != null) {
+            write(save, results);
+            System.out.println("Baseline written to " + save);
+        }
+        if(compare != null && compare(read(compare), results) > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Measurement> collect(Collection<RunResult> runResults) {
+        Map<String, Measurement> results = new LinkedHashMap<>();
+        for(RunResult runResult : runResults) {
+            StringBuilder key = new StringBuilder(runResult.getParams().getBenchmark());
+            for(String param : runResult.getParams().getParamsKeys()) {
+                key.append(' ').append(param).append('=').append(runResult.getParams().getParam(param));
+            }
+
+            Result<?> primary = runResult.getPrimaryResult();
+            double allocated = Double.NaN;
+            for(Map.Entry<String, Result> secondary : runResult.getSecondaryResults().entrySet()) {
+                if(secondary.getKey().endsWith(ALLOCATION)) allocated = secondary.getValue().getScore();
+            }
+            results.put(key.toString(), new Measurement(primary.getScore(), primary.getScoreError(), primary.getScoreUnit(), allocated));
+        }
+        return results;
+    }
+
+    // Number of benchmarks that regressed against the baseline, every difference is printed
+    private static int compare(Map<String, Measurement> baseline, Map<String, Measurement> results) {
+        int regressions = 0;
+        for(Map.Entry<String, Measurement> result : results.entrySet()) {
+            Measurement before = baseline.get(result.getKey());
+            Measurement after = result.getValue();
+            if(before == null) {
+                System.out.println("NEW        " + result.getKey());
+                continue;
+            }
+
+            boolean slower = after.score() > (before.score() + finite(before.error())) * (1 + THRESHOLD);
+            boolean allocates = after.allocatedBytes() > before.allocatedBytes() * (1 + THRESHOLD);
+            if(slower || allocates) regressions++;
+
+            System.out.printf("%-10s %s: %.3f -> %.3f %s, %.0f -> %.0f B/op%n",
+                    (slower || allocates) ? "REGRESSED" : "OK", result.getKey(),
+                    before.score(), after.score(), after.unit(), before.allocatedBytes(), after.allocatedBytes());
+        }
+        return regressions;
+    }
+
+    // One tab separated line per benchmark: key, score, error, unit, allocated bytes per operation
+    private static void write(Path path, Map<String, Measurement> results) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# benchmark\tscore\terror\tunit\tB/op");
+        for(Map.Entry<String, Measurement> result : results.entrySet()) {
+            Measurement measurement = result.getValue();
+            lines.add(result.getKey() + "\t" + measurement.score() + "\t" + measurement.error() + "\t"
+                    + measurement.unit() + "\t" + measurement.allocatedBytes());
+        }
+        if(path.getParent() != null) Files.createDirectories(path.getParent());
+        Files.write(path, lines);
+    }
+
+    private static Map<String, Measurement> read(Path path) throws IOException {
+        Map<String, Measurement> baseline = new LinkedHashMap<>();
+        for(String line : Files.readAllLines(path)) {
+            if(line.isBlank() || line.startsWith("#")) continue;
+            String[] fields = line.split("\t");
+            baseline.put(fields[0], new Measurement(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                    fields[3], Double.parseDouble(fields[4])));
+        }
+        return baseline;
+    }
+
+    private static double finite(double value) {
+        return Double.isFinite(value) ? value : 0;
+    }
+}
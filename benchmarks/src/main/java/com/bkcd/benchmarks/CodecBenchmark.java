@@ -0,0 +1,71 @@
+package com.bkcd.benchmarks;
+
+import com.bkcd.Pack.Codec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compressing & decompressing an object with every codec, the time an object write or read spends
+ * in the codec. Random content stands for archives & media, which no codec makes smaller. The
+ * stored size of the content is printed once per codec & content, the other side of the trade off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"store", "lz", "deflate:1", "deflate", "deflate:9"})
+    public String codecName;
+
+    @Param({"text", "random"})
+    public String content;
+
+    @Param({"65536", "1048576"})
+    public int size;
+
+    private Codec codec;
+    private byte[] data;
+    private byte[] compressed;
+
+    @Setup
+    public void setup() throws IOException {
+        codec = Codec.parse(codecName);
+        Random random = new Random(RepoGenerator.SEED);
+        if(content.equals("text")) {
+            data = RepoGenerator.content(random, size);
+        } else {
+            data = new byte[size];
+            random.nextBytes(data);
+        }
+
+        compressed = codec.compress(data);
+        System.out.printf("%n%s %s %d: stored as %d bytes, %.1f%% of the content%n",
+                codecName, content, size, compressed.length, 100.0 * compressed.length / data.length);
+    }
+
+    @Benchmark
+    public byte[] compress() throws IOException {
+        return codec.compress(data);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        return Codec.decompress(ByteBuffer.wrap(compressed));
+    }
+}
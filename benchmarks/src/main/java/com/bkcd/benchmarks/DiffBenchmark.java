@@ -0,0 +1,47 @@
+package com.bkcd.benchmarks;
+
+import com.bkcd.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Unified diff of one file against an edited copy of itself
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+
+    @Param({"0.01", "0.1"})
+    public double changeRate;
+
+    private String[] oldLines;
+    private String[] newLines;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(RepoGenerator.SEED);
+        oldLines = RepoGenerator.lines(random, lines);
+        newLines = RepoGenerator.edit(oldLines, random, changeRate);
+    }
+
+    @Benchmark
+    public String generateDiff() {
+        return Main.generateDiff("file.txt", oldLines, newLines);
+    }
+}
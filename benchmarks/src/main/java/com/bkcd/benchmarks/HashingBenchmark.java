@@ -0,0 +1,78 @@
+package com.bkcd.benchmarks;
+
+import com.bkcd.Objects.Blob;
+import com.bkcd.Objects.Hashing;
+import com.bkcd.Objects.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header construction & hash of a blob in both object formats, a new Blob every call since the id
+ * is cached. Hashing a file reads it through a channel the way status & checkout do, the parallel
+ * variant is staging on several threads, which shouldn't be slower per blob than a single thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashingBenchmark {
+    @Param({"sha1", "sha256"})
+    public String format;
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private Hashing.ObjectFormat objectFormat;
+    private byte[] data;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        objectFormat = Hashing.ObjectFormat.parse(format);
+        data = RepoGenerator.content(new Random(RepoGenerator.SEED), size);
+        file = Files.createTempFile("delta-hash", ".bin");
+        Files.write(file, data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public ObjectId blobContent() throws Exception {
+        Blob blob = new Blob(data);
+        blob.getContent(objectFormat);
+        return blob.getId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ObjectId blobContentParallel() throws Exception {
+        return blobContent();
+    }
+
+    @Benchmark
+    public ObjectId hashFile() throws IOException {
+        return Hashing.hashFile(objectFormat, file, size);
+    }
+}
@@ -0,0 +1,77 @@
+package com.bkcd.benchmarks;
+
+import com.bkcd.Index;
+import com.bkcd.Objects.Blob;
+import com.bkcd.Objects.Hashing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the index & staging a small batch of changed files into it. The batch replaces the same
+ * paths every call, so it stays in the delta file & the base is never rewritten.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBenchmark {
+    private static final int CHANGED_FILES = 100;
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private Path repo;
+    private final HashMap<String, Index.StagedFile> changed = new HashMap<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        repo = RepoGenerator.indexedRepo(entries);
+        for(int i = 0; i < CHANGED_FILES; i++) {
+            Blob blob = new Blob(("changed " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            blob.getContent(Hashing.ObjectFormat.SHA1);
+            String path = RepoGenerator.filePath(i * (entries / CHANGED_FILES));
+            changed.put(path, new Index.StagedFile(blob.getId(), Files.readAttributes(repo.resolve(path), "unix:*")));
+        }
+    }
+
+    // The generated repo is reused by later runs, so it is put back into its original state
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(repo.resolve(".git/index.delta"));
+    }
+
+    @Benchmark
+    public Index loadIndex() throws IOException {
+        Index index = new Index(repo);
+        index.loadIndex();
+        return index;
+    }
+
+    @Benchmark
+    public Index addFiles() throws IOException {
+        Index index = new Index(repo);
+        index.loadIndex();
+        index.addFiles(new HashMap<>(changed));
+        return index;
+    }
+}
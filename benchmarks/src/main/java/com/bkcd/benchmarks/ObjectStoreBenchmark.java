@@ -0,0 +1,65 @@
+package com.bkcd.benchmarks;
+
+import com.bkcd.ObjectStore;
+import com.bkcd.Objects.Blob;
+import com.bkcd.Objects.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing, deflating & writing a new loose object. Every call stores different content, otherwise
+ * all but the first call would only check that the object already exists. The store is emptied
+ * after every iteration to keep directory sizes the same across iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectStoreBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private byte[] data;
+    private Path storePath;
+    private ObjectStore storage;
+    private long counter = 0;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        data = RepoGenerator.content(new Random(RepoGenerator.SEED), size);
+        storePath = RepoGenerator.emptyStore("objects-" + size);
+        storage = new ObjectStore(storePath);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        RepoGenerator.deleteRecursively(storePath);
+    }
+
+    @Benchmark
+    public ObjectId store() throws IOException {
+        ByteBuffer.wrap(data).putLong(0, counter++);
+        Blob blob = new Blob(data);
+        storage.store(blob);
+        return blob.getId();
+    }
+}
@@ -0,0 +1,129 @@
+package com.bkcd.benchmarks;
+
+import com.bkcd.Index;
+import com.bkcd.Objects.Hashing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic content for the benchmarks. Everything is derived from a fixed seed so runs on
+ * different machines & commits measure exactly the same data.
+ */
+public final class RepoGenerator {
+    public static final long SEED = 42;
+
+    private static final int FILES_PER_DIRECTORY = 1000;
+    private static final Path REPO_ROOT = Path.of("target", "bench-repos").toAbsolutePath();
+    private static final String[] WORDS = {
+            "delta", "tree", "blob", "commit", "index", "object", "store", "pack", "hash", "entry",
+            "branch", "head", "path", "file", "diff", "stage", "merge", "graph", "chunk", "ref"
+    };
+
+    private RepoGenerator() {}
+
+    /**
+     * Repo with the given number of tracked files & an index covering all of them. Writing a
+     * million files takes a while, so generated repos are kept under target/bench-repos & reused.
+     */
+    public static Path indexedRepo(int fileCount) throws IOException {
+        Path repo = REPO_ROOT.resolve("index-" + fileCount);
+        Path marker = repo.resolve(".git/generated");
+        if(Files.exists(marker)) return repo;
+
+        deleteRecursively(repo);
+        Files.createDirectories(repo.resolve(".git/objects"));
+
+        HashMap<String, Index.StagedFile> entries = new HashMap<>(fileCount * 2);
+        for(int i = 0; i < fileCount; i++) {
+            String path = filePath(i);
+            Path filePath = repo.resolve(path);
+            Files.createDirectories(filePath.getParent());
+            Files.writeString(filePath, "file " + i + "\n");
+            Map<String, Object> stat = Files.readAttributes(filePath, "unix:*");
+            entries.put(path, new Index.StagedFile(Hashing.hashFile(Hashing.ObjectFormat.SHA1, filePath, Files.size(filePath)), stat));
+        }
+
+        new Index(repo).addFiles(entries);
+        Files.createFile(marker);
+        return repo;
+    }
+
+    // An empty object store in a fresh directory
+    public static Path emptyStore(String name) throws IOException {
+        Path store = REPO_ROOT.resolve(name);
+        deleteRecursively(store);
+        Files.createDirectories(store);
+        return store;
+    }
+
+    public static String filePath(int i) {
+        return String.format("dir%04d/file%06d.txt", i / FILES_PER_DIRECTORY, i);
+    }
+
+    // Text shaped like source code, lines of a few words each
+    public static byte[] content(Random random, int size) {
+        StringBuilder text = new StringBuilder(size + 64);
+        while(text.length() < size) {
+            text.append(line(random)).append('\n');
+        }
+        text.setLength(size);
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static String[] lines(Random random, int count) {
+        String[] lines = new String[count];
+        for(int i = 0; i < count; i++) {
+            lines[i] = line(random);
+        }
+        return lines;
+    }
+
+    // A copy with roughly the given fraction of lines replaced, deleted or inserted
+    public static String[] edit(String[] lines, Random random, double changeRate) {
+        List<String> edited = new ArrayList<>(lines.length + 16);
+        for(String line : lines) {
+            if(random.nextDouble() >= changeRate) {
+                edited.add(line);
+                continue;
+            }
+            switch(random.nextInt(3)) {
+                case 0 -> edited.add(line(random));
+                case 1 -> {}
+                default -> {
+                    edited.add(line);
+                    edited.add(line(random));
+                }
+            }
+        }
+        return edited.toArray(new String[0]);
+    }
+
+    public static void deleteRecursively(Path path) throws IOException {
+        if(!Files.exists(path)) return;
+        try (Stream<Path> files = Files.walk(path)) {
+            for(Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static String line(Random random) {
+        StringBuilder line = new StringBuilder("    ");
+        int words = 2 + random.nextInt(8);
+        for(int i = 0; i < words; i++) {
+            if(i > 0) line.append(' ');
+            line.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return line.toString();
+    }
+}
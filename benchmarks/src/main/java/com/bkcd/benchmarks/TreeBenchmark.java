@@ -0,0 +1,75 @@
+package com.bkcd.benchmarks;
+
+import com.bkcd.ObjectStore;
+import com.bkcd.Objects.Blob;
+import com.bkcd.Objects.Hashing;
+import com.bkcd.Objects.ObjectId;
+import com.bkcd.Objects.Tree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building & generating the full tree of a flat list of paths, as a commit without a cache tree
+ * does. The trees are already stored after the first call, later calls hash every tree & find it
+ * present, which is the cost of a commit that changed nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeBenchmark {
+    @Param({"10000", "100000"})
+    public int entries;
+
+    private String[] paths;
+    private ObjectId[] blobIds;
+    private Path storePath;
+    private ObjectStore storage;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        paths = new String[entries];
+        blobIds = new ObjectId[entries];
+        for(int i = 0; i < entries; i++) {
+            paths[i] = RepoGenerator.filePath(i);
+            Blob blob = new Blob(("file " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            blob.getContent(Hashing.ObjectFormat.SHA1);
+            blobIds[i] = blob.getId();
+        }
+        storePath = RepoGenerator.emptyStore("trees-" + entries);
+        storage = new ObjectStore(storePath);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        RepoGenerator.deleteRecursively(storePath);
+    }
+
+    @Benchmark
+    public ObjectId generate() throws IOException {
+        Tree tree = new Tree();
+        for(int i = 0; i < entries; i++) {
+            tree.add(paths[i], new Blob(blobIds[i], "100644"));
+        }
+        tree.generate(storage);
+        return tree.getId();
+    }
+}
@@ -0,0 +1,294 @@
+package com.bkcd;
+
+import com.bkcd.Objects.Blob;
+import com.bkcd.Objects.Commit;
+import com.bkcd.Objects.ObjectEntity;
+import com.bkcd.Objects.ObjectId;
+import com.bkcd.Objects.Tree;
+import com.bkcd.Objects.TreeEntry;
+import com.bkcd.Pack.PackWriter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Imports a whole history in one go, in the spirit of git fast-import, for tools converting other
+ * version control systems. Commits are given as records of the file changes they make, nothing is
+ * read from or written to the workspace & the index isn't touched.
+ *
+ * The tree of every branch is kept in memory between commits & only the directories on the paths
+ * of changed files are serialized & hashed again. Objects are deflated straight into a new pack
+ * instead of one loose file each, the branches are only moved once finish() has completed it:
+ *
+ *   try (BatchImporter importer = new BatchImporter(repoPath)) {
+ *       importer.commit(new BatchImporter.CommitRecord("main", "Initial import", time, changes));
+ *       ...
+ *       importer.finish();
+ *   }
+ *
+ * A branch continues from the commit its ref points to when the import starts, a branch that
+ * doesn't exist yet starts with a root commit. Closing without finish() leaves the branches as
+ * they were & discards the pack being written.
+ */
+public class BatchImporter implements AutoCloseable {
+    public static final String REGULAR_MODE = "100644";
+    public static final String EXECUTABLE_MODE = "100755";
+
+    /**
+     * A file written with the given content & mode or, when content is null, a path deleted. Deleting
+     * a directory deletes everything below it, directories left empty disappear from the tree.
+     */
+    public record FileChange(String path, String mode, byte[] content) {
+        public static FileChange modify(String path, byte[] content) {
+            return new FileChange(path, REGULAR_MODE, content);
+        }
+
+        public static FileChange delete(String path) {
+            return new FileChange(path, null, null);
+        }
+
+        public boolean isDelete() {
+            return content == null;
+        }
+    }
+
+    // Time in seconds since the epoch, changes are applied in order on top of the branch's last commit
+    public record CommitRecord(String branch, String message, long time, List<FileChange> changes) {}
+
+    private final ObjectStore storage;
+    private final Refs refs;
+    private final Path graphPath;
+    private final LinkedHashMap<String, Branch> branches = new LinkedHashMap<>();
+    private PackWriter writer;
+    private int objectCount = 0;
+    private boolean finished = false;
+
+    private static final class Branch {
+        //Where the ref pointed when the import started, it is only moved if it still does
+        private final ObjectId startId;
+        private final Directory root;
+        private ObjectId head;
+
+        private Branch(ObjectId startId, Directory root) {
+            this.startId = startId;
+            this.root = root;
+            this.head = startId;
+        }
+    }
+
+    /**
+     * Directory of a branch's tree. Subdirectories of a stored tree are only read once a change
+     * reaches into them, the id is cleared by every change & set again once the tree is written.
+     */
+    private static final class Directory {
+        private ObjectId id;
+        private TreeMap<String, Directory> directories = null;
+        private TreeMap<String, TreeEntry> files = null;
+
+        private static Directory existing(ObjectId id) {
+            Directory directory = new Directory();
+            directory.id = id;
+            return directory;
+        }
+
+        private static Directory empty() {
+            Directory directory = new Directory();
+            directory.directories = new TreeMap<>();
+            directory.files = new TreeMap<>();
+            return directory;
+        }
+
+        private boolean isEmpty() {
+            return directories != null && directories.isEmpty() && files.isEmpty();
+        }
+    }
+
+    public BatchImporter(Path repoPath) throws IOException {
+        this.storage = new ObjectStore(repoPath.resolve(".git/objects"));
+        this.refs = new Refs(repoPath.resolve(".git").toString());
+        this.graphPath = repoPath.resolve(".git/objects/info/commit-graph");
+        this.writer = new PackWriter(storage.packDirectory(), storage.codec());
+    }
+
+    // Applies the changes to the branch's tree & writes the commit, returns its id
+    public ObjectId commit(CommitRecord record) throws IOException {
+        if(finished) throw new IllegalStateException("Import already finished");
+
+        Trace.Span span = Trace.span("import.commit");
+        try {
+            Branch branch = branch(record.branch());
+            for(FileChange change : record.changes()) {
+                String[] names = splitPath(change.path());
+                if(change.isDelete()) {
+                    delete(branch.root, names, 0);
+                } else {
+                    Blob blob = new Blob(change.content());
+                    write(blob);
+                    modify(branch.root, names, 0, change.mode(), blob.getId());
+                }
+            }
+
+            String parentId = (branch.head == null) ? "root-commit" : branch.head.toHex();
+            Commit commit = new Commit(parentId, writeTree(branch.root), record.message(), record.time());
+            write(commit);
+            branch.head = commit.getId();
+            return branch.head;
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Completes the pack & then moves every branch to its last imported commit. A branch another
+     * process moved during the import is left alone & reported with an IOException once the other
+     * branches are updated. Returns the last commit of every imported branch.
+     */
+    public Map<String, ObjectId> finish() throws IOException {
+        Trace.Span span = Trace.span("import.finish");
+        try {
+            writer.finish();
+            finished = true;
+            storage.reloadPacks();
+
+            Map<String, ObjectId> heads = new LinkedHashMap<>();
+            List<String> conflicts = new ArrayList<>();
+            for(Map.Entry<String, Branch> entry : branches.entrySet()) {
+                Branch branch = entry.getValue();
+                if(branch.head == null) continue;
+
+                heads.put(entry.getKey(), branch.head);
+                if(branch.head.equals(branch.startId)) continue;
+                if(!refs.updateBranch(entry.getKey(), branch.startId, branch.head)) conflicts.add(entry.getKey());
+            }
+
+            CommitGraph graph = new CommitGraph(graphPath);
+            for(ObjectId head : heads.values()) {
+                graph.update(storage, head);
+            }
+
+            if(!conflicts.isEmpty()) {
+                throw new IOException("Branches updated by another process during the import: " + String.join(", ", conflicts));
+            }
+            return heads;
+        } finally {
+            span.close();
+        }
+    }
+
+    // Objects written so far, objects that were in the store already aren't written again
+    public int getObjectCount() {
+        return objectCount + writer.count();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(!finished) {
+            writer.close();
+            finished = true;
+        }
+    }
+
+    private Branch branch(String name) throws IOException {
+        Branch branch = branches.get(name);
+        if(branch != null) return branch;
+
+        ObjectId startId = refs.branchExists(name) ? refs.resolve(name) : null;
+        Directory root = (startId == null) ? Directory.empty()
+                : Directory.existing(Commit.parseTreeId(storage.reader().body(startId)));
+        branch = new Branch(startId, root);
+        branches.put(name, branch);
+        return branch;
+    }
+
+    private void modify(Directory directory, String[] names, int depth, String mode, ObjectId blobId) throws IOException {
+        load(directory);
+        directory.id = null;
+
+        //A file replaces a directory of the same name & the other way round
+        String name = names[depth];
+        if(depth == names.length - 1) {
+            directory.directories.remove(name);
+            directory.files.put(name, new TreeEntry(name, mode, blobId));
+        } else {
+            directory.files.remove(name);
+            modify(directory.directories.computeIfAbsent(name, n -> Directory.empty()), names, depth + 1, mode, blobId);
+        }
+    }
+
+    // Returns false if there was nothing at the path
+    private boolean delete(Directory directory, String[] names, int depth) throws IOException {
+        load(directory);
+
+        String name = names[depth];
+        if(depth == names.length - 1) {
+            if(directory.files.remove(name) == null && directory.directories.remove(name) == null) return false;
+        } else {
+            Directory child = directory.directories.get(name);
+            if(child == null || !delete(child, names, depth + 1)) return false;
+            if(child.isEmpty()) directory.directories.remove(name);
+        }
+        directory.id = null;
+        return true;
+    }
+
+    private void load(Directory directory) throws IOException {
+        if(directory.files != null) return;
+
+        directory.directories = new TreeMap<>();
+        directory.files = new TreeMap<>();
+        for(TreeEntry entry : Tree.parseEntries(storage.reader().body(directory.id))) {
+            if(entry.isTree()) {
+                directory.directories.put(entry.name(), Directory.existing(entry.id()));
+            } else {
+                directory.files.put(entry.name(), entry);
+            }
+        }
+    }
+
+    // Writes the directories changed since the last commit, bottom up
+    private ObjectId writeTree(Directory directory) throws IOException {
+        if(directory.id != null) return directory.id;
+
+        Tree tree = new Tree();
+        for(Map.Entry<String, Directory> child : directory.directories.entrySet()) {
+            tree.addChild(child.getKey(), Tree.existing(writeTree(child.getValue())));
+        }
+        for(TreeEntry file : directory.files.values()) {
+            tree.addChild(file.name(), new Blob(file.id(), file.mode()));
+        }
+        write(tree);
+        directory.id = tree.getId();
+        return directory.id;
+    }
+
+    // Adds the object to the pack unless it is part of it or of the store already
+    private void write(ObjectEntity object) throws IOException {
+        byte[] content = object.getContent(storage.objectFormat());
+        ObjectId id = object.getId();
+        if(writer.contains(id) || storage.contains(id)) return;
+
+        //Packs are memory mapped while reading, a large import is split over several
+        if(writer.size() > PackWriter.MAX_PACK_SIZE) {
+            objectCount += writer.count();
+            writer.finish();
+            writer = new PackWriter(storage.packDirectory(), storage.codec());
+            storage.reloadPacks();
+        }
+        writer.add(id, content);
+    }
+
+    private static String[] splitPath(String path) {
+        String[] names = path.split("/");
+        for(String name : names) {
+            if(name.isEmpty() || name.equals(".") || name.equals("..") || name.equals(".git")) {
+                throw new IllegalArgumentException("Invalid path: " + path);
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,81 @@
+package com.bkcd;
+
+import com.bkcd.Objects.ObjectId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tree ids of directories whose index entries haven't changed since their tree was last written.
+ * Changing an entry drops the ids of all directories on its path, every other directory keeps
+ * its id so the next commit can reuse it without hashing anything below it.
+ * Directories are keyed by their path relative to the repo, the root directory is "".
+ *
+ * Stored as the "TREE" index extension: for every directory its path, a null byte & the tree id.
+ */
+public class CacheTree {
+    public static final String SIGNATURE = "TREE";
+
+    private final TreeMap<String, ObjectId> validTrees = new TreeMap<>();
+
+    public static CacheTree parse(ByteBuffer data) {
+        CacheTree cacheTree = new CacheTree();
+        if(data == null) return cacheTree;
+
+        int position = 0;
+        while(position < data.limit()) {
+            int pathEnd = position;
+            while(data.get(pathEnd) != 0) pathEnd++;
+
+            byte[] path = new byte[pathEnd - position];
+            data.get(position, path);
+            cacheTree.validTrees.put(new String(path, StandardCharsets.UTF_8), ObjectId.fromBuffer(data, pathEnd + 1));
+            position = pathEnd + 1 + ObjectId.LENGTH;
+        }
+        return cacheTree;
+    }
+
+    public ObjectId get(String directory) {
+        return validTrees.get(directory);
+    }
+
+    public void put(String directory, ObjectId treeId) {
+        validTrees.put(directory, treeId);
+    }
+
+    // Drops the ids of every directory containing this file, from the root down to its parent
+    public void invalidate(String filePath) {
+        validTrees.remove("");
+        int separator = filePath.indexOf('/');
+        while(separator != -1) {
+            validTrees.remove(filePath.substring(0, separator));
+            separator = filePath.indexOf('/', separator + 1);
+        }
+    }
+
+    public boolean isEmpty() {
+        return validTrees.isEmpty();
+    }
+
+    // Extension bytes including signature & length
+    public byte[] toExtension() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] id = new byte[ObjectId.LENGTH];
+        for(Map.Entry<String, ObjectId> entry : validTrees.entrySet()) {
+            data.write(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            data.write(0);
+            entry.getValue().copyTo(id, 0);
+            data.write(id);
+        }
+
+        ByteArrayOutputStream extension = new ByteArrayOutputStream(data.size() + 8);
+        extension.write(SIGNATURE.getBytes(StandardCharsets.US_ASCII));
+        extension.write(ByteBuffer.allocate(4).putInt(data.size()).array());
+        data.writeTo(extension);
+        return extension.toByteArray();
+    }
+}
@@ -0,0 +1,259 @@
+package com.bkcd;
+
+import com.bkcd.Objects.Hashing;
+import com.bkcd.Objects.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Moves the workspace from one tree to another. Only paths whose blob ids or modes differ between
+ * both trees are touched, so the cost depends on the size of the difference & not on the repo.
+ * Files are streamed out of the store by a pool of workers & the index is updated in one write.
+ */
+public class Checkout {
+    private static final Set<PosixFilePermission> EXECUTABLE = PosixFilePermissions.fromString("rwxr-xr-x");
+    private static final Set<PosixFilePermission> REGULAR = PosixFilePermissions.fromString("rw-r--r--");
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    private final Path repoPath;
+    private final ObjectStore storage;
+    private final Index index;
+    private final int jobs;
+
+    public Checkout(Path repoPath, ObjectStore storage, Index index, int jobs) {
+        this.repoPath = repoPath;
+        this.storage = storage;
+        this.index = index;
+        this.jobs = Math.max(1, jobs);
+    }
+
+    public List<TreeDiff.Change> changes(ObjectId currentTreeId, ObjectId targetTreeId) throws IOException {
+        return new TreeDiff(storage).compareTrees(currentTreeId, targetTreeId);
+    }
+
+    /**
+     * Paths the checkout would lose local work at. A path is safe when its index entry still
+     * matches the current tree & the workspace file matches the index. An untracked file is only
+     * safe to replace if it already holds the target content. A file or directory standing where
+     * the other is needed is only safe if it holds nothing but tracked files the checkout deletes.
+     */
+    public List<String> conflicts(List<TreeDiff.Change> changes) throws IOException {
+        Set<String> deleted = new HashSet<>();
+        for(TreeDiff.Change change : changes) {
+            if(change.newId() == null) deleted.add(change.path());
+        }
+
+        List<String> conflicts = new ArrayList<>();
+        for(TreeDiff.Change change : changes) {
+            ObjectId staged = index.lookupId(change.path());
+            if(!Objects.equals(staged, change.oldId())) {
+                conflicts.add(change.path());
+                continue;
+            }
+
+            //A file where a parent directory has to go, whether it may be deleted is checked with its own change.
+            //A file to delete below it is already gone.
+            String blocking = blockingFile(change.path());
+            if(blocking != null) {
+                if(change.newId() != null && !deleted.contains(blocking)) conflicts.add(change.path());
+                continue;
+            }
+
+            Path filePath = repoPath.resolve(change.path());
+            Map<String, Object> meta;
+            try {
+                meta = Files.readAttributes(filePath, "unix:*", LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+
+            if((Boolean) meta.get("isDirectory")) {
+                if(!holdsOnly(filePath, deleted)) conflicts.add(change.path());
+                continue;
+            }
+
+            //A link or special file in the way can't be replaced without losing it
+            if(!(Boolean) meta.get("isRegularFile")) {
+                conflicts.add(change.path());
+                continue;
+            }
+
+            if(staged != null && index.lookupUnchanged(change.path(), meta) != null) continue;
+
+            ObjectId current = Hashing.hashFile(storage.objectFormat(), filePath, ((Number) meta.get("size")).longValue());
+            if(!current.equals(staged != null ? staged : change.newId())) {
+                conflicts.add(change.path());
+            }
+        }
+        return conflicts;
+    }
+
+    // Closest parent of the path that exists as something other than a directory, null if there is none
+    private String blockingFile(String path) {
+        for(int separator = path.indexOf('/'); separator != -1; separator = path.indexOf('/', separator + 1)) {
+            Path parent = repoPath.resolve(path.substring(0, separator));
+            if(!Files.exists(parent, LinkOption.NOFOLLOW_LINKS)) return null;
+            if(!Files.isDirectory(parent, LinkOption.NOFOLLOW_LINKS)) return path.substring(0, separator);
+        }
+        return null;
+    }
+
+    // Whether every file below the directory is one of the given paths, empty directories hold nothing
+    private boolean holdsOnly(Path directory, Set<String> paths) throws IOException {
+        try (Stream<Path> content = Files.walk(directory)) {
+            return content.allMatch(path -> Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)
+                    || paths.contains(repoPath.relativize(path).toString()));
+        }
+    }
+
+    /**
+     * Deletes the removed files, then writes the changed ones & records both in the index.
+     * Deleting first frees every path that turns from a file into a directory or back. When
+     * a write fails, whatever was already done is still recorded before the error is thrown,
+     * so the index keeps matching the workspace.
+     */
+    public void apply(List<TreeDiff.Change> changes) throws IOException {
+        Trace.Span span = Trace.span("checkout.apply");
+        try {
+            HashMap<String, Index.StagedFile> written = new HashMap<>();
+            HashSet<String> removed = new HashSet<>();
+            try {
+                deleteFiles(changes, removed);
+                writeFiles(changes, written);
+            } catch (IOException e) {
+                index.update(written, removed);
+                throw e;
+            }
+            index.update(written, removed);
+        } finally {
+            span.close();
+        }
+    }
+
+    // Directories emptied by a deletion are removed with it
+    private void deleteFiles(List<TreeDiff.Change> changes, Set<String> removed) throws IOException {
+        for(TreeDiff.Change change : changes) {
+            if(change.newId() != null) continue;
+            //Nothing exists below a file that took the place of a parent directory
+            Path filePath = repoPath.resolve(change.path());
+            if(Files.exists(filePath, LinkOption.NOFOLLOW_LINKS)) Files.delete(filePath);
+            deleteEmptyParents(filePath.getParent());
+            removed.add(change.path());
+        }
+    }
+
+    // Every write is waited for even after one failed, the first failure is thrown once all are done
+    private void writeFiles(List<TreeDiff.Change> changes, Map<String, Index.StagedFile> written) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<Index.StagedFile>> writes = new ArrayList<>();
+            for(TreeDiff.Change change : changes) {
+                if(change.newId() == null) continue;
+                writes.add(workers.submit(() -> {
+                    //Only the mode changed, a file still in place already has the right content
+                    Path filePath = repoPath.resolve(change.path());
+                    if(change.newId().equals(change.oldId()) && Files.isRegularFile(filePath, LinkOption.NOFOLLOW_LINKS)) {
+                        setMode(filePath, change.newMode());
+                    } else {
+                        writeFile(change.path(), change.newId(), change.newMode());
+                    }
+                    //Stat of the file as written, a later edit makes it differ from the index entry
+                    return new Index.StagedFile(change.newId(), Files.readAttributes(filePath, "unix:*", LinkOption.NOFOLLOW_LINKS));
+                }));
+            }
+
+            IOException failure = null;
+            int next = 0;
+            for(TreeDiff.Change change : changes) {
+                if(change.newId() == null) continue;
+                try {
+                    written.put(change.path(), writes.get(next++).get());
+                } catch (ExecutionException e) {
+                    if(failure == null) failure = new IOException("Unable to write " + change.path(), e.getCause());
+                }
+            }
+            if(failure != null) throw failure;
+        } catch (InterruptedException e) {
+            throw new IOException("Unable to write workspace files", e);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * The blob is inflated into a temp file next to the target & renamed over it, so the workspace
+     * never holds a partially written file. The temp file gets the mode before the rename, so the
+     * file never shows up with the wrong permissions. A directory left in the way of the file can
+     * only hold empty directories once the deletions ran, it is removed first.
+     */
+    private void writeFile(String path, ObjectId blobId, String mode) throws IOException {
+        Path filePath = repoPath.resolve(path);
+        if(Files.isDirectory(filePath, LinkOption.NOFOLLOW_LINKS)) deleteEmptyTree(filePath);
+        Files.createDirectories(filePath.getParent());
+
+        Path tempPath = Files.createTempFile(filePath.getParent(), ".delta_checkout_", "");
+        try {
+            try (InputStream in = storage.openBody(blobId)) {
+                Files.copy(in, tempPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            setMode(tempPath, mode);
+            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    // Deleting a directory that still holds a file fails, so nothing but empty directories is lost
+    private static void deleteEmptyTree(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if(e != null) throw e;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Executable files get rwxr-xr-x, all others rw-r--r--, file systems without permissions are left alone
+    private static void setMode(Path filePath, String mode) throws IOException {
+        if(!POSIX) return;
+        Files.setPosixFilePermissions(filePath, mode.equals("100755") ? EXECUTABLE : REGULAR);
+    }
+
+    private void deleteEmptyParents(Path directory) throws IOException {
+        while(directory != null && !directory.equals(repoPath)) {
+            try (var content = Files.list(directory)) {
+                if(content.findAny().isPresent()) return;
+            } catch (NoSuchFileException | NotDirectoryException e) {
+                return;
+            }
+            Files.deleteIfExists(directory);
+            directory = directory.getParent();
+        }
+    }
+}
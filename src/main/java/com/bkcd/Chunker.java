@@ -0,0 +1,98 @@
+package com.bkcd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into content defined chunks, FastCDC style. A gear hash rolls over the bytes & a
+ * chunk ends where the top bits of the hash are all zero, so boundaries depend on the content around
+ * them only. Inserting or changing a few bytes moves the boundaries next to the edit but every
+ * chunk further away comes out exactly as before & is found in the store already.
+ *
+ * Chunks are at least MIN_SIZE & at most MAX_SIZE bytes, the first MIN_SIZE bytes of a chunk
+ * aren't hashed at all. Up to the average size a stricter mask is used & after it a looser one,
+ * which keeps chunk sizes close to the average (normalized chunking).
+ */
+public class Chunker {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVERAGE_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    // 16 bits for a 64 KB average, two more before it & two less after it
+    private static final long MASK_STRICT = -1L << (64 - 18);
+    private static final long MASK_LOOSE = -1L << (64 - 14);
+
+    /**
+     * Random value per byte. Generated from a fixed seed, the table must never change since chunk
+     * boundaries & with them the ids of stored chunks depend on it.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long state = 0x5DE1_7A00_C0DE_CDC1L;
+        for(int i = 0; i < GEAR.length; i++) {
+            //splitmix64
+            long z = (state += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[2 * MAX_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private boolean endOfInput = false;
+
+    public Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    // Next chunk of the stream, null once all of it has been returned
+    public byte[] next() throws IOException {
+        if(limit - position < MAX_SIZE && !endOfInput) fill();
+        if(position == limit) return null;
+
+        int length = cutPoint(buffer, position, limit - position);
+        byte[] chunk = Arrays.copyOfRange(buffer, position, position + length);
+        position += length;
+        return chunk;
+    }
+
+    // Length of the chunk starting at offset, available is the number of bytes buffered from there
+    static int cutPoint(byte[] data, int offset, int available) {
+        if(available <= MIN_SIZE) return available;
+
+        int end = Math.min(available, MAX_SIZE);
+        int normal = Math.min(end, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for(; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if((hash & MASK_STRICT) == 0) return i + 1;
+        }
+        for(; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if((hash & MASK_LOOSE) == 0) return i + 1;
+        }
+        return end;
+    }
+
+    // Moves the unread bytes to the front & reads until the buffer is full or the stream ends
+    private void fill() throws IOException {
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+
+        while(limit < buffer.length) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if(read < 0) {
+                endOfInput = true;
+                return;
+            }
+            limit += read;
+        }
+    }
+}
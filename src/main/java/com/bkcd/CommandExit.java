@@ -0,0 +1,31 @@
+package com.bkcd;
+
+/**
+ * Ends the running command with an exit code. A normal invocation exits the JVM, inside the daemon
+ * the exception unwinds the request instead & its code is sent back to the client.
+ */
+public class CommandExit extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private static volatile boolean inDaemon = false;
+
+    private final int code;
+
+    private CommandExit(int code) {
+        super(null, null, false, false);
+        this.code = code;
+    }
+
+    public static void exit(int code) {
+        if(inDaemon) throw new CommandExit(code);
+        System.exit(code);
+    }
+
+    static void runInDaemon() {
+        inDaemon = true;
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
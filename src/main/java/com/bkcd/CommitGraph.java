@@ -0,0 +1,224 @@
+package com.bkcd;
+
+import com.bkcd.Objects.Commit;
+import com.bkcd.Objects.ObjectId;
+import com.bkcd.Objects.ObjectIdMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed width table of every commit's graph data, so history can be walked without inflating
+ * & parsing commit objects. The file is memory mapped for reading & only ever appended to.
+ *
+ * Layout: "CGPH" | version | row count | rows...
+ * Row:    commit id (20 bytes) | tree id (20 bytes) | parent position (4 bytes, -1 for a root)
+ *         | generation (4 bytes) | commit time in seconds (8 bytes)
+ *
+ * A commit is always appended after its parent, so parent positions never change & positions only
+ * ever point backwards. The generation of a root commit is 1, every other commit has one more than
+ * its parent, a commit can't be an ancestor of one with a lower or equal generation. Rows are
+ * written before the count in the header is raised, rows past the count are ignored. Appending
+ * happens under "commit-graph.lock", readers don't take the lock.
+ */
+public class CommitGraph {
+    private static final byte[] SIGNATURE = {'C', 'G', 'P', 'H'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int ROW_SIZE = 56;
+
+    private final Path graphPath;
+    private MappedByteBuffer graph;
+    private int count;
+
+    // Position of every row below indexed, rows are only appended so entries never go stale
+    private ObjectIdMap<Integer> positions = new ObjectIdMap<>();
+    private int indexed = 0;
+
+    public CommitGraph(Path graphPath) throws IOException {
+        this.graphPath = graphPath;
+        load();
+    }
+
+    private void load() throws IOException {
+        graph = null;
+        count = 0;
+        if(!Files.exists(graphPath)) {
+            dropPositions();
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(graphPath, StandardOpenOption.READ)) {
+            graph = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        // An unreadable graph is treated as empty & gets rewritten by the next update
+        if(graph.capacity() < HEADER_SIZE || graph.getInt(4) != VERSION || !hasSignature(graph)) {
+            graph = null;
+            dropPositions();
+            return;
+        }
+        count = Math.min(graph.getInt(8), (graph.capacity() - HEADER_SIZE) / ROW_SIZE);
+        if(count < indexed) dropPositions();
+    }
+
+    // A graph that is missing, unreadable or has fewer rows than were indexed is written from scratch
+    private void dropPositions() {
+        positions = new ObjectIdMap<>();
+        indexed = 0;
+    }
+
+    /**
+     * Picks up rows appended by another process since the file was mapped. Rows can be written over
+     * the unused tail of the file, so the count is read again from the mapping even if the size held.
+     */
+    public void refresh() throws IOException {
+        long size = Files.exists(graphPath) ? Files.size(graphPath) : 0;
+        if(graph == null || size != graph.capacity()) {
+            load();
+        } else {
+            count = Math.min(graph.getInt(8), (graph.capacity() - HEADER_SIZE) / ROW_SIZE);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Position of the commit or -1 when it isn't part of the graph. The commits looked up by id are
+     * mostly branch heads, which are almost always the newest row, so that one is checked first.
+     * Otherwise rows not indexed yet are added to the id map, each row is indexed once per graph.
+     */
+    public int position(ObjectId id) {
+        if(count > 0 && id.compareTo(graph, row(count - 1)) == 0) return count - 1;
+
+        for(; indexed < count; indexed++) {
+            positions.put(commitId(indexed), indexed);
+        }
+        Integer position = positions.get(id);
+        return (position == null) ? -1 : position;
+    }
+
+    public ObjectId commitId(int position) {
+        return ObjectId.fromBuffer(graph, row(position));
+    }
+
+    public ObjectId treeId(int position) {
+        return ObjectId.fromBuffer(graph, row(position) + 20);
+    }
+
+    public int parent(int position) {
+        return graph.getInt(row(position) + 40);
+    }
+
+    public int generation(int position) {
+        return graph.getInt(row(position) + 44);
+    }
+
+    public long time(int position) {
+        return graph.getLong(row(position) + 48);
+    }
+
+    /**
+     * Nearest common ancestor of both commits or -1 if they share no history. Whichever side has
+     * the higher generation steps back first, neither side walks past the generation of the other
+     * so the walk stops as soon as both meet instead of going down to the root.
+     */
+    public int mergeBase(int first, int second) {
+        while(first >= 0 && second >= 0 && first != second) {
+            if(generation(first) >= generation(second)) {
+                first = parent(first);
+            } else {
+                second = parent(second);
+            }
+        }
+        return (first == second) ? first : -1;
+    }
+
+    /**
+     * Makes sure the commit & all of its ancestors are part of the graph & returns its position.
+     * Only commits missing from the graph are read from the store, for a new commit on top of
+     * an existing graph that is the commit alone.
+     */
+    @SuppressWarnings("try")
+    public int update(ObjectStore storage, ObjectId commitId) throws IOException {
+        int known = position(commitId);
+        if(known >= 0) return known;
+
+        Files.createDirectories(graphPath.getParent());
+        try (LockFile lock = LockFile.acquire(graphPath)) {
+            //Positions of the new rows depend on the count, another process may have appended since the mapping
+            load();
+            return appendMissing(storage, commitId);
+        }
+    }
+
+    private int appendMissing(ObjectStore storage, ObjectId commitId) throws IOException {
+        List<ObjectId> missing = new ArrayList<>();
+        List<byte[]> missingCommits = new ArrayList<>();
+        int parentPosition = -1;
+
+        ObjectId current = commitId;
+        while(current != null) {
+            int position = position(current);
+            if(position >= 0) {
+                parentPosition = position;
+                break;
+            }
+            byte[] commit = storage.reader().body(current);
+            missing.add(current);
+            missingCommits.add(commit);
+            current = Commit.parseParentId(commit);
+        }
+        if(missing.isEmpty()) return parentPosition;
+
+        // Oldest first, so every parent is written before its children
+        ByteBuffer rows = ByteBuffer.allocate(missing.size() * ROW_SIZE);
+        int generation = (parentPosition < 0) ? 0 : generation(parentPosition);
+        int position = count;
+        for(int i = missing.size() - 1; i >= 0; i--) {
+            byte[] commit = missingCommits.get(i);
+            rows.put(missing.get(i).toBytes())
+                    .put(Commit.parseTreeId(commit).toBytes())
+                    .putInt(parentPosition)
+                    .putInt(++generation)
+                    .putLong(Commit.parseTime(commit));
+            parentPosition = position++;
+        }
+        return append(rows.flip(), missing.size());
+    }
+
+    private int append(ByteBuffer rows, int rowCount) throws IOException {
+        try (FileChannel channel = FileChannel.open(graphPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if(graph == null) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.allocate(HEADER_SIZE).put(SIGNATURE).putInt(VERSION).putInt(0).flip(), 0);
+            }
+            channel.write(rows, HEADER_SIZE + (long) count * ROW_SIZE);
+            channel.force(false);
+            channel.write(ByteBuffer.allocate(4).putInt(0, count + rowCount), 8);
+        }
+
+        load();
+        return count - 1;
+    }
+
+    private static int row(int position) {
+        return HEADER_SIZE + position * ROW_SIZE;
+    }
+
+    private static boolean hasSignature(ByteBuffer buffer) {
+        for(int i = 0; i < SIGNATURE.length; i++) {
+            if(buffer.get(i) != SIGNATURE[i]) return false;
+        }
+        return true;
+    }
+}
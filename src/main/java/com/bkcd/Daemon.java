@@ -0,0 +1,151 @@
+package com.bkcd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves commands over a Unix domain socket at ".git/delta.sock", so the JVM, the object cache,
+ * mapped packs & validated index files stay warm between commands. Requests are served one at
+ * a time, commands share static state & write to System.out, so they can't run concurrently.
+ *
+ * Request:  arg count | args... | env count | (name | value)...      (ints & modified UTF-8 strings)
+ * Response: frames of type (1 byte) | length (4 bytes) | bytes, type 1 is stdout & 2 is stderr.
+ *           The last frame has type 0 & carries the exit code in place of the length.
+ */
+public class Daemon {
+    static final byte FRAME_EXIT = 0;
+    static final byte FRAME_STDOUT = 1;
+    static final byte FRAME_STDERR = 2;
+
+    public interface Command {
+        void run(String[] args) throws IOException;
+    }
+
+    private final Path socketPath;
+    private final Command command;
+    private volatile boolean running = true;
+
+    public Daemon(Path socketPath, Command command) {
+        this.socketPath = socketPath;
+        this.command = command;
+    }
+
+    public static Path socketPath(Path repoPath) {
+        return repoPath.resolve(".git/delta.sock");
+    }
+
+    public void serve() throws IOException {
+        // A socket file left behind by a daemon that died would make the bind fail
+        Files.deleteIfExists(socketPath);
+        CommandExit.runInDaemon();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socketPath);
+                } catch (IOException e) {}
+            }));
+            System.out.println("Delta daemon listening on " + socketPath);
+
+            while(running) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (IOException e) {
+                    System.err.println("Daemon request failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    private void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+        String[] args = new String[in.readInt()];
+        for(int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        Map<String, String> env = new HashMap<>();
+        int envCount = in.readInt();
+        for(int i = 0; i < envCount; i++) {
+            env.put(in.readUTF(), in.readUTF());
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream requestOut = new PrintStream(new FrameStream(out, FRAME_STDOUT), true);
+        PrintStream requestErr = new PrintStream(new FrameStream(out, FRAME_STDERR), true);
+
+        int code = 0;
+        System.setOut(requestOut);
+        System.setErr(requestErr);
+        Environment.setRequestEnv(env);
+        try {
+            if(args.length == 2 && args[0].equals("daemon") && args[1].equals("stop")) {
+                running = false;
+                System.out.println("Delta daemon stopped");
+            } else {
+                command.run(args);
+            }
+        } catch (CommandExit e) {
+            code = e.getCode();
+        } catch (Exception e) {
+            System.err.println("Command failed: " + e);
+            code = 1;
+        } finally {
+            requestOut.flush();
+            requestErr.flush();
+            System.setOut(stdout);
+            System.setErr(stderr);
+            Environment.setRequestEnv(null);
+        }
+
+        out.writeByte(FRAME_EXIT);
+        out.writeInt(code);
+        out.flush();
+    }
+
+    // Output written by the command is forwarded to the client as frames of one type
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        FrameStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if(length == 0) return;
+            out.writeByte(type);
+            out.writeInt(length);
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.bkcd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Forwards a command to a running daemon & replays its output, see Daemon for the protocol
+public class DaemonClient {
+    /**
+     * Returns the exit code of the command or null when no daemon accepted the connection, in which
+     * case the caller runs the command itself. Once the request has been sent the command is never
+     * run a second time, a connection lost midway is reported as a failure.
+     */
+    public static Integer run(Path socketPath, String[] args) {
+        if(!Files.exists(socketPath)) return null;
+
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.connect(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException e) {
+            return null;
+        }
+
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            for(String arg : args) {
+                out.writeUTF(arg);
+            }
+
+            Map<String, String> env = new TreeMap<>();
+            System.getenv().forEach((name, value) -> {
+                if(name.startsWith(Environment.PREFIX)) env.put(name, value);
+            });
+            out.writeInt(env.size());
+            for(Map.Entry<String, String> variable : env.entrySet()) {
+                out.writeUTF(variable.getKey());
+                out.writeUTF(variable.getValue());
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            while(true) {
+                byte type = in.readByte();
+                if(type == Daemon.FRAME_EXIT) {
+                    System.out.flush();
+                    return in.readInt();
+                }
+
+                byte[] data = in.readNBytes(in.readInt());
+                PrintStream target = (type == Daemon.FRAME_STDERR) ? System.err : System.out;
+                target.write(data, 0, data.length);
+            }
+        } catch (IOException e) {
+            System.err.println("Lost connection to delta daemon: " + e.getMessage());
+            return 1;
+        }
+    }
+}
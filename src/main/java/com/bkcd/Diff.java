@@ -0,0 +1,225 @@
+package com.bkcd;
+
+import java.util.HashMap;
+
+/**
+ * Line diff based on Myers' O(ND) algorithm with the linear space refinement: instead of keeping
+ * every furthest reaching path, each step searches forwards & backwards at once for the middle
+ * snake of an optimal path & recurses on both sides of it. Memory stays linear in the number of
+ * lines & time grows with the number of differences rather than the product of both lengths.
+ *
+ * Lines are interned to ints first so the inner loops compare ints instead of strings,
+ * common prefixes & suffixes are trimmed before any searching happens.
+ */
+public class Diff {
+    private static final int DEFAULT_CONTEXT = 3;
+
+    private final int[] oldLines;
+    private final int[] newLines;
+    private final boolean[] removed;
+    private final boolean[] added;
+
+    private int[] forward;
+    private int[] backward;
+
+    private Diff(int[] oldLines, int[] newLines) {
+        this.oldLines = oldLines;
+        this.newLines = newLines;
+        this.removed = new boolean[oldLines.length];
+        this.added = new boolean[newLines.length];
+    }
+
+    public static String unified(String[] oldData, String[] newData) {
+        return unified(oldData, newData, DEFAULT_CONTEXT);
+    }
+
+    // Returns the changes as unified diff hunks, an empty string if both sides are equal
+    public static String unified(String[] oldData, String[] newData, int context) {
+        Trace.Span span = Trace.span("diff.content");
+        try {
+            HashMap<String, Integer> lineIds = new HashMap<>();
+            Diff diff = new Diff(intern(oldData, lineIds), intern(newData, lineIds));
+            diff.compare(0, oldData.length, 0, newData.length);
+            return diff.format(oldData, newData, context);
+        } finally {
+            span.close();
+        }
+    }
+
+    private static int[] intern(String[] lines, HashMap<String, Integer> lineIds) {
+        int[] ids = new int[lines.length];
+        for(int i = 0; i < lines.length; i++) {
+            Integer id = lineIds.putIfAbsent(lines[i], lineIds.size());
+            ids[i] = (id == null) ? lineIds.size() - 1 : id;
+        }
+        return ids;
+    }
+
+    private void compare(int oldStart, int oldEnd, int newStart, int newEnd) {
+        while(oldStart < oldEnd && newStart < newEnd && oldLines[oldStart] == newLines[newStart]) {
+            oldStart++;
+            newStart++;
+        }
+        while(oldStart < oldEnd && newStart < newEnd && oldLines[oldEnd - 1] == newLines[newEnd - 1]) {
+            oldEnd--;
+            newEnd--;
+        }
+
+        if(oldStart == oldEnd) {
+            for(int j = newStart; j < newEnd; j++) added[j] = true;
+            return;
+        }
+        if(newStart == newEnd) {
+            for(int i = oldStart; i < oldEnd; i++) removed[i] = true;
+            return;
+        }
+
+        int[] snake = middleSnake(oldStart, oldEnd, newStart, newEnd);
+        boolean progress = (snake[0] > oldStart || snake[1] > newStart) && (snake[2] < oldEnd || snake[3] < newEnd);
+        if(!progress) {
+            //Can't happen once both ends are trimmed, guards against endless recursion regardless
+            for(int i = oldStart; i < oldEnd; i++) removed[i] = true;
+            for(int j = newStart; j < newEnd; j++) added[j] = true;
+            return;
+        }
+
+        compare(oldStart, snake[0], newStart, snake[1]);
+        compare(snake[2], oldEnd, snake[3], newEnd);
+    }
+
+    /**
+     * Finds the middle snake of an optimal edit path between both ranges. Returns its start & end
+     * as {oldStart, newStart, oldEnd, newEnd}. Diagonal k holds the points where x - y = k, the
+     * forward arrays store the furthest x reached from the top left, the backward ones the
+     * furthest distance reached from the bottom right.
+     */
+    private int[] middleSnake(int oldStart, int oldEnd, int newStart, int newEnd) {
+        int n = oldEnd - oldStart;
+        int m = newEnd - newStart;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+
+        if(forward == null || forward.length < 2 * max + 3) {
+            forward = new int[2 * max + 3];
+            backward = new int[2 * max + 3];
+        }
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+
+        for(int d = 0; d <= max; d++) {
+            for(int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1]))
+                        ? forward[offset + k + 1]
+                        : forward[offset + k - 1] + 1;
+                int y = x - k;
+                int snakeX = x;
+                int snakeY = y;
+                while(x < n && y < m && oldLines[oldStart + x] == newLines[newStart + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+
+                int reverseK = delta - k;
+                if(odd && reverseK >= -(d - 1) && reverseK <= d - 1 && x + backward[offset + reverseK] >= n) {
+                    return new int[] {oldStart + snakeX, newStart + snakeY, oldStart + x, newStart + y};
+                }
+            }
+
+            for(int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1]))
+                        ? backward[offset + k + 1]
+                        : backward[offset + k - 1] + 1;
+                int y = x - k;
+                int snakeX = x;
+                int snakeY = y;
+                while(x < n && y < m && oldLines[oldEnd - 1 - x] == newLines[newEnd - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+
+                int forwardK = delta - k;
+                if(!odd && forwardK >= -d && forwardK <= d && x + forward[offset + forwardK] >= n) {
+                    return new int[] {oldEnd - x, newEnd - y, oldEnd - snakeX, newEnd - snakeY};
+                }
+            }
+        }
+        throw new IllegalStateException("No middle snake found");
+    }
+
+    /**
+     * Writes the hunks. Changes closer than twice the context are merged into one hunk,
+     * line numbers in hunk headers start at 1 as in any unified diff.
+     */
+    private String format(String[] oldData, String[] newData, int context) {
+        StringBuilder out = new StringBuilder();
+        int oldIndex = 0;
+        int newIndex = 0;
+
+        while(true) {
+            //Skip to the next change
+            while(oldIndex < oldData.length && newIndex < newData.length && !removed[oldIndex] && !added[newIndex]) {
+                oldIndex++;
+                newIndex++;
+            }
+            if(oldIndex >= oldData.length && newIndex >= newData.length) break;
+
+            int leading = Math.min(context, Math.min(oldIndex, newIndex));
+            int hunkOldStart = oldIndex - leading;
+            int hunkNewStart = newIndex - leading;
+            StringBuilder hunk = new StringBuilder();
+            for(int i = 0; i < leading; i++) {
+                hunk.append(' ').append(oldData[hunkOldStart + i]).append('\n');
+            }
+
+            int unchanged = 0;
+            while(oldIndex < oldData.length || newIndex < newData.length) {
+                if(oldIndex < oldData.length && removed[oldIndex]) {
+                    hunk.append('-').append(oldData[oldIndex++]).append('\n');
+                    unchanged = 0;
+                } else if(newIndex < newData.length && added[newIndex]) {
+                    hunk.append('+').append(newData[newIndex++]).append('\n');
+                    unchanged = 0;
+                } else if(unchanged < 2 * context && hasChangeWithin(oldIndex, newIndex, 2 * context - unchanged)) {
+                    hunk.append(' ').append(oldData[oldIndex++]).append('\n');
+                    newIndex++;
+                    unchanged++;
+                } else {
+                    int trailing = Math.min(context, oldData.length - oldIndex);
+                    for(int i = 0; i < trailing; i++) {
+                        hunk.append(' ').append(oldData[oldIndex++]).append('\n');
+                        newIndex++;
+                    }
+                    break;
+                }
+            }
+
+            int oldCount = oldIndex - hunkOldStart;
+            int newCount = newIndex - hunkNewStart;
+            out.append("@@ -").append(range(hunkOldStart, oldCount))
+                    .append(" +").append(range(hunkNewStart, newCount))
+                    .append(" @@\n")
+                    .append(hunk);
+        }
+        return out.toString();
+    }
+
+    // Whether another change starts within the given number of unchanged lines
+    private boolean hasChangeWithin(int oldIndex, int newIndex, int lines) {
+        for(int i = 0; i < lines; i++) {
+            if(oldIndex + i >= oldLines.length || newIndex + i >= newLines.length) {
+                return oldIndex + i < oldLines.length || newIndex + i < newLines.length;
+            }
+            if(removed[oldIndex + i] || added[newIndex + i]) return true;
+        }
+        return false;
+    }
+
+    private static String range(int start, int count) {
+        //An empty range names the line before it, as in diff -u
+        return (count == 0) ? start + ",0" : (start + 1) + "," + count;
+    }
+}
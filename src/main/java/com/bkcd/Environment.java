@@ -0,0 +1,25 @@
+package com.bkcd;
+
+import java.util.Map;
+
+/**
+ * Environment variables of the invoking process. Inside the daemon these are the variables the
+ * client sent along with its request rather than those the daemon was started with.
+ */
+public final class Environment {
+    // Only variables with this prefix are forwarded by the client
+    static final String PREFIX = "DELTA_";
+
+    private static volatile Map<String, String> requestEnv = null;
+
+    private Environment() {}
+
+    public static String get(String name) {
+        Map<String, String> env = requestEnv;
+        return (env != null) ? env.get(name) : System.getenv(name);
+    }
+
+    static void setRequestEnv(Map<String, String> env) {
+        requestEnv = env;
+    }
+}
@@ -0,0 +1,195 @@
+package com.bkcd;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records which workspace paths changed, so commands don't have to stat every tracked file.
+ * Every directory outside .git is watched, a background thread stamps each reported path with an
+ * increasing sequence number. A token names a point in that sequence & is only valid for the
+ * monitor instance that handed it out, tokens of an earlier daemon never match.
+ *
+ * Events arrive asynchronously, so before a token is handed out a cookie file is created in .git &
+ * the monitor waits until it sees it, every change made before that point has been recorded then.
+ * When events were lost, an overflow or too many dirty paths, earlier tokens stop being valid &
+ * the next command falls back to a full scan.
+ */
+public class FsMonitor {
+    private static final String COOKIE_PREFIX = "fsmonitor-cookie-";
+    private static final long SYNC_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_DIRTY_PATHS = 1_000_000;
+
+    private final Path repoPath;
+    private final Path gitPath;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile long invalidBefore = 0;
+    private final ConcurrentHashMap<String, Long> changedPaths = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CountDownLatch> cookies = new ConcurrentHashMap<>();
+    private final AtomicLong cookieCounter = new AtomicLong();
+
+    public FsMonitor(Path repoPath) throws IOException {
+        this.repoPath = repoPath;
+        this.gitPath = repoPath.resolve(".git");
+        this.watcher = repoPath.getFileSystem().newWatchService();
+    }
+
+    public void start() throws IOException {
+        gitPath.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        registerTree(repoPath, false);
+
+        Thread thread = new Thread(this::processEvents, "fsmonitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits until all changes made before this call have been recorded & returns a token for this
+     * point. Returns null if the monitor couldn't confirm that in time.
+     */
+    public String sync() throws IOException {
+        String cookie = COOKIE_PREFIX + instanceId + "-" + cookieCounter.incrementAndGet();
+        CountDownLatch seen = new CountDownLatch(1);
+        cookies.put(cookie, seen);
+
+        Path cookiePath = gitPath.resolve(cookie);
+        try {
+            Files.createFile(cookiePath);
+            if(!seen.await(SYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) return null;
+            return instanceId + ":" + sequence.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            cookies.remove(cookie);
+            Files.deleteIfExists(cookiePath);
+        }
+    }
+
+    /**
+     * Paths relative to the repo that changed after the token was handed out, directories included.
+     * Null when the token isn't from this monitor or events were lost since, a full scan is needed.
+     */
+    public Set<String> changedSince(String token) {
+        if(token == null || !token.startsWith(instanceId + ":")) return null;
+
+        long since = Long.parseLong(token.substring(instanceId.length() + 1));
+        if(since < invalidBefore) return null;
+
+        Set<String> changed = new HashSet<>();
+        for(Map.Entry<String, Long> entry : changedPaths.entrySet()) {
+            if(entry.getValue() > since) changed.add(entry.getKey());
+        }
+        return changed;
+    }
+
+    private void processEvents() {
+        try {
+            while(true) {
+                WatchKey key = watcher.take();
+                Path directory = directories.get(key);
+
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidate();
+                        continue;
+                    }
+
+                    Path name = (Path) event.context();
+                    if(directory == null) {
+                        CountDownLatch cookie = cookies.get(name.toString());
+                        if(cookie != null) cookie.countDown();
+                        continue;
+                    }
+
+                    Path changed = directory.resolve(name);
+                    record(changed);
+                    if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        watchNewDirectory(changed);
+                    }
+                }
+
+                if(!key.reset()) directories.remove(key);
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Monitor is shutting down
+        }
+    }
+
+    /**
+     * A directory that can't be watched means changes below it would go unnoticed, so earlier tokens
+     * become invalid. The monitor keeps running, otherwise every later sync would time out.
+     */
+    private void watchNewDirectory(Path directory) {
+        try {
+            registerTree(directory, true);
+        } catch (IOException e) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Watches the directory & everything below it. A directory created while the monitor runs may
+     * already have content before it is watched, so all of it is recorded as changed.
+     */
+    private void registerTree(Path root, boolean recordFiles) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if(dir.equals(gitPath)) return FileVisitResult.SKIP_SUBTREE;
+
+                //A directory deleted meanwhile has nothing left to watch, its parent reports the deletion
+                try {
+                    directories.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                } catch (NoSuchFileException e) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(recordFiles) record(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void record(Path changed) {
+        changedPaths.put(repoPath.relativize(changed).toString(), sequence.incrementAndGet());
+        if(changedPaths.size() > MAX_DIRTY_PATHS) invalidate();
+    }
+
+    // Tokens handed out so far can't be answered anymore
+    private void invalidate() {
+        invalidBefore = sequence.incrementAndGet();
+        changedPaths.clear();
+    }
+}
@@ -0,0 +1,259 @@
+package com.bkcd;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which untracked files are left out of add & status, following the rules of
+ * ".deltaignore" files with gitignore semantics. A rules file applies to its directory & everything
+ * below it, the rules of a deeper file take precedence & within a file the last matching rule wins.
+ * Walks ask before entering a directory, so an ignored directory is skipped along with its content.
+ *
+ *   # comment        blank lines & comments are skipped, "\#" starts a pattern with #
+ *   !pattern         re-includes what an earlier rule excluded
+ *   pattern/         only matches directories
+ *   name, *.log      no slash: matches the name at any depth below the rules file
+ *   /build, a/b      a slash at the start or in the middle anchors the pattern to the rules file
+ *   a/**             everything inside a, a leading or inner ** segment matches any number of directories
+ *
+ * Patterns are compiled once per rules file: every path segment becomes either a literal or a
+ * regex for its wildcards, & rules matching a plain name are indexed by that name, so a lookup
+ * only tries the rules that can match at all. Parsed files are cached per directory & reused for
+ * as long as the file doesn't change, the daemon keeps them across commands.
+ */
+public class IgnoreRules {
+    public static final String FILE_NAME = ".deltaignore";
+
+    private static final ConcurrentHashMap<Path, RuleFile> parsedFiles = new ConcurrentHashMap<>();
+    private static final RuleFile NO_RULES = new RuleFile(List.of(), null);
+
+    private final Path repoPath;
+    private final ConcurrentHashMap<Path, RuleFile> loaded = new ConcurrentHashMap<>();
+
+    public IgnoreRules(Path repoPath) {
+        this.repoPath = repoPath;
+    }
+
+    /**
+     * Whether the file or directory is ignored by the rules of its own & its parent directories.
+     * Meant for walks, which never enter an ignored directory, so ignored parents aren't checked.
+     */
+    public boolean isIgnored(Path path, boolean directory) throws IOException {
+        if(path.equals(repoPath)) return false;
+
+        Path relative = repoPath.relativize(path);
+        String[] segments = new String[relative.getNameCount()];
+        for(int i = 0; i < segments.length; i++) {
+            segments[i] = relative.getName(i).toString();
+        }
+        return match(segments, segments.length, directory);
+    }
+
+    // Whether the path relative to the repo is ignored itself or lies in an ignored directory
+    public boolean isExcluded(String path) throws IOException {
+        String[] segments = path.split("/");
+        for(int length = 1; length < segments.length; length++) {
+            if(match(segments, length, true)) return true;
+        }
+        return match(segments, segments.length, Files.isDirectory(repoPath.resolve(path)));
+    }
+
+    // Deepest rules file with a matching rule decides, the path is its first length segments
+    private boolean match(String[] segments, int length, boolean directory) throws IOException {
+        Path directoryPath = repoPath;
+        List<RuleFile> ruleFiles = new ArrayList<>(length);
+        for(int depth = 0; depth < length; depth++) {
+            ruleFiles.add(rules(directoryPath));
+            directoryPath = directoryPath.resolve(segments[depth]);
+        }
+
+        for(int depth = length - 1; depth >= 0; depth--) {
+            Rule rule = ruleFiles.get(depth).lastMatch(segments, depth, length, directory);
+            if(rule != null) return !rule.negated;
+        }
+        return false;
+    }
+
+    private RuleFile rules(Path directory) throws IOException {
+        RuleFile rules = loaded.get(directory);
+        if(rules == null) {
+            rules = RuleFile.load(directory.resolve(FILE_NAME));
+            loaded.put(directory, rules);
+        }
+        return rules;
+    }
+
+    private record Rule(int order, Segment[] segments, boolean negated, boolean directoryOnly, boolean anchored) {
+        /**
+         * Unanchored rules only look at the last segment. Anchored ones have to match the whole path
+         * below the rules file, segment by segment.
+         */
+        boolean matches(String[] path, int from, int to, boolean directory) {
+            if(directoryOnly && !directory) return false;
+            if(!anchored) return segments[0].matches(path[to - 1]);
+            return matchSegments(0, path, from, to);
+        }
+
+        private boolean matchSegments(int s, String[] path, int p, int to) {
+            for(; s < segments.length; s++, p++) {
+                if(segments[s].isAnyDirectories()) {
+                    //Trailing ** matches everything inside, including nothing left below a directory
+                    if(s == segments.length - 1) return p < to;
+                    for(int skip = p; skip <= to; skip++) {
+                        if(matchSegments(s + 1, path, skip, to)) return true;
+                    }
+                    return false;
+                }
+                if(p >= to || !segments[s].matches(path[p])) return false;
+            }
+            return p == to;
+        }
+    }
+
+    // A path segment of a pattern, either plain text or a regex compiled from its wildcards
+    private record Segment(String literal, Pattern glob) {
+        static Segment compile(String text) {
+            if(text.equals("**")) return new Segment(text, null);
+
+            StringBuilder regex = new StringBuilder();
+            boolean wildcard = false;
+            StringBuilder literal = new StringBuilder();
+            for(int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if(c == '\\' && i + 1 < text.length()) {
+                    c = text.charAt(++i);
+                    literal.append(c);
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                } else if(c == '*') {
+                    wildcard = true;
+                    regex.append(".*");
+                } else if(c == '?') {
+                    wildcard = true;
+                    regex.append('.');
+                } else if(c == '[' && text.indexOf(']', i + 2) > 0) {
+                    wildcard = true;
+                    int end = text.indexOf(']', i + 2);
+                    String set = text.substring(i + 1, end);
+                    if(set.startsWith("!")) set = "^" + set.substring(1);
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                } else {
+                    literal.append(c);
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return wildcard ? new Segment(null, Pattern.compile(regex.toString(), Pattern.DOTALL))
+                    : new Segment(literal.toString(), null);
+        }
+
+        boolean isAnyDirectories() {
+            return glob == null && literal.equals("**");
+        }
+
+        // A ** segment matches any name, on its own in an unanchored rule it works like *
+        boolean matches(String name) {
+            if(isAnyDirectories()) return true;
+            return glob == null ? literal.equals(name) : glob.matcher(name).matches();
+        }
+    }
+
+    /**
+     * Rules of one file. Unanchored rules without wildcards are looked up by name, the remaining
+     * ones are tried from last to first until none of them could beat the match found so far.
+     */
+    private static class RuleFile {
+        private final Map<String, List<Rule>> byName = new HashMap<>();
+        private final List<Rule> patterns = new ArrayList<>();
+        private final BasicFileAttributes attributes;
+
+        RuleFile(List<Rule> rules, BasicFileAttributes attributes) {
+            this.attributes = attributes;
+            for(Rule rule : rules) {
+                Segment first = rule.segments()[0];
+                if(!rule.anchored() && first.glob() == null && !first.isAnyDirectories()) {
+                    byName.computeIfAbsent(first.literal(), name -> new ArrayList<>()).add(rule);
+                } else {
+                    patterns.add(rule);
+                }
+            }
+        }
+
+        static RuleFile load(Path filePath) throws IOException {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                parsedFiles.remove(filePath);
+                return NO_RULES;
+            }
+
+            RuleFile cached = parsedFiles.get(filePath);
+            if(cached != null && cached.attributes.lastModifiedTime().equals(attributes.lastModifiedTime())
+                    && cached.attributes.size() == attributes.size() && cached.attributes.fileKey() != null
+                    && cached.attributes.fileKey().equals(attributes.fileKey())) {
+                return cached;
+            }
+
+            List<Rule> rules = new ArrayList<>();
+            for(String line : Files.readAllLines(filePath)) {
+                Rule rule = parse(line, rules.size());
+                if(rule != null) rules.add(rule);
+            }
+            RuleFile ruleFile = new RuleFile(rules, attributes);
+            parsedFiles.put(filePath, ruleFile);
+            return ruleFile;
+        }
+
+        Rule lastMatch(String[] path, int from, int to, boolean directory) {
+            Rule best = null;
+            List<Rule> named = byName.get(path[to - 1]);
+            if(named != null) {
+                for(int i = named.size() - 1; i >= 0 && best == null; i--) {
+                    if(named.get(i).matches(path, from, to, directory)) best = named.get(i);
+                }
+            }
+            for(int i = patterns.size() - 1; i >= 0; i--) {
+                Rule rule = patterns.get(i);
+                if(best != null && rule.order() < best.order()) break;
+                if(rule.matches(path, from, to, directory)) return rule;
+            }
+            return best;
+        }
+
+        // Null for blank lines & comments
+        private static Rule parse(String line, int order) {
+            //Trailing spaces are dropped unless escaped with a backslash
+            int end = line.length();
+            while(end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) end--;
+            line = line.substring(0, end);
+            if(line.isEmpty() || line.startsWith("#")) return null;
+
+            boolean negated = line.startsWith("!");
+            if(negated) line = line.substring(1);
+            if(line.startsWith("\\#") || line.startsWith("\\!")) line = line.substring(1);
+
+            boolean directoryOnly = line.endsWith("/");
+            if(directoryOnly) line = line.substring(0, line.length() - 1);
+
+            boolean anchored = line.contains("/");
+            if(line.startsWith("/")) line = line.substring(1);
+            if(line.isEmpty()) return null;
+
+            String[] parts = line.split("/+");
+            Segment[] segments = new Segment[parts.length];
+            for(int i = 0; i < parts.length; i++) {
+                segments[i] = Segment.compile(parts[i]);
+            }
+            return new Rule(order, segments, negated, directoryOnly, anchored);
+        }
+    }
+}
@@ -1,72 +1,313 @@
 package com.bkcd;
 
 import com.bkcd.Objects.Blob;
-import org.apache.commons.codec.digest.DigestUtils;
+import com.bkcd.Objects.Hashing;
+import com.bkcd.Objects.ObjectId;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
 
+/**
+ * The index is split in two files. ".git/index" is the base holding the bulk of the entries,
+ * ".git/index.delta" holds only the entries added or changed since the base was last written.
+ * Adding a few files rewrites just the delta file, once it grows past a fraction of the base both
+ * are consolidated into a new base. Entries of the delta take precedence over those of the base.
+ * All writes happen while holding ".git/index.lock" & replace files through an atomic rename.
+ * Each written file carries the cache tree & the file system monitor state as extensions, those of
+ * the delta file are the current ones whenever a delta file exists.
+ *
+ * The delta file links to the checksum of the base it was written against, like the link extension
+ * of git's split index. A delta left behind by a consolidation that didn't get to delete it, or one
+ * read alongside a base that was consolidated in the meantime, doesn't match & is ignored.
+ */
 public class Index {
-    private Path indexPath = Path.of(System.getProperty("user.dir"), ".git/index");
-    private HashMap<String,String> entryIds = new HashMap<>();
-    private HashMap<String, byte[]> existingEntryData = new HashMap<>();
+    private static final int SPLIT_MIN_ENTRIES = 1000;
+    private static final int SPLIT_RATIO = 5;      //Consolidate once the delta exceeds 1/5th of the base
+    private static final String BASE_LINK = "LINK";
+
+    private final Path repoPath;
+    private final Path indexPath;
+    private final Path deltaPath;
+
+    /**
+     * Blob staged for a file & the file's "unix:*" attributes as they were read before it was hashed.
+     * Stat data taken any later could belong to a newer version of the file than the blob, which
+     * the stat cache would then consider unchanged for good.
+     */
+    public record StagedFile(ObjectId blobId, Map<String, Object> stat) {}
+
+    private HashMap<String, StagedFile> stagedFiles = new HashMap<>();
+    private IndexReader baseEntries = null;
+    private IndexReader deltaEntries = null;
+    private FileTime baseModifiedTime = null;
+    private FileTime deltaModifiedTime = null;
+    private CacheTree cacheTree = new CacheTree();
+    private volatile ObjectId emptyBlobId = null;
+    private MonitorState monitorState = null;
+
+    public Index() {
+        this(Path.of(System.getProperty("user.dir")));
+    }
 
-    public void addFiles(HashMap<String, String> newEntryIds) throws IOException {
-        if(newEntryIds.size() == 0) return;
+    // Entry paths are relative to the repo, the index files live in its .git directory
+    public Index(Path repoPath) {
+        this.repoPath = repoPath;
+        this.indexPath = repoPath.resolve(".git/index");
+        this.deltaPath = indexPath.resolveSibling("index.delta");
+    }
 
-        if(!Files.exists(indexPath)) {
-            Files.createFile(indexPath);
-        } else {
-            loadIndex();
-        }
+    public void addFiles(HashMap<String, StagedFile> newEntries) throws IOException {
+        update(newEntries, Set.of());
+    }
+
+    /**
+     * Adds or replaces the given entries & drops the removed paths in a single write. The delta
+     * file can't express a removal, so removing entries always consolidates into a new base.
+     */
+    @SuppressWarnings("try")
+    public void update(HashMap<String, StagedFile> newEntries, Set<String> removedPaths) throws IOException {
+        Trace.Span span = Trace.span("index.write");
+        try {
+            if(newEntries.size() == 0 && removedPaths.isEmpty()) return;
+
+            try (LockFile lock = LockFile.acquire(indexPath)) {
+                //Reload under the lock, another process may have written the index since it was last read
+                loadIndex();
+
+                //Only directories containing a file whose blob or mode actually changed lose their tree id
+                for(Map.Entry<String, StagedFile> entry : newEntries.entrySet()) {
+                    String path = entry.getKey();
+                    StagedFile staged = entry.getValue();
+                    if(!staged.blobId().equals(lookupId(path)) || fileMode(staged.stat()) != lookupMode(path)) {
+                        cacheTree.invalidate(path);
+                    }
+                }
+
+                for(String path : removedPaths) {
+                    cacheTree.invalidate(path);
+                }
+
+                if(monitorState != null) {
+                    monitorState.recordUpdate(newEntries.keySet(), removedPaths);
+                }
+
+                stagedFiles.putAll(newEntries);    //insert newly added files to index entries
+
+                //Existing entries are stored sorted by their path bytes, new ones are sorted the same way
+                List<byte[]> sortedEntryPaths = new ArrayList<>(stagedFiles.size());
+                for(String path : stagedFiles.keySet()) {
+                    sortedEntryPaths.add(path.getBytes(StandardCharsets.UTF_8));
+                }
+                sortedEntryPaths.sort(Arrays::compareUnsigned);
+
+                int baseCount = (baseEntries == null) ? 0 : baseEntries.size();
+                int deltaCount = (deltaEntries == null) ? 0 : deltaEntries.size();
 
-        entryIds.putAll(newEntryIds);    //insert newly added files to index entries
-
-        List<String> sortedEntryPaths = new ArrayList<>();
-        sortedEntryPaths.addAll(entryIds.keySet());
-        Collections.sort(sortedEntryPaths);
-
-        ByteArrayOutputStream content = new ByteArrayOutputStream();
-        content.write(getHeader(entryIds.size()));
-
-        sortedEntryPaths.forEach( path -> {
-            String blobId = entryIds.get(path);
-            try {
-                System.out.println(path + ": " + blobId);
-                /**
-                 * This condition would hold true for unchanged index entries.
-                 * For such cases we can avoid re-computation of entry data.
-                 */
-                if(blobId == null) {
-                    content.write(existingEntryData.get(path));
+                if(baseEntries == null || !removedPaths.isEmpty()
+                        || deltaCount + sortedEntryPaths.size() > Math.max(SPLIT_MIN_ENTRIES, baseCount / SPLIT_RATIO)) {
+                    writeIndex(indexPath, null, baseEntries, deltaEntries, sortedEntryPaths, removedPaths);
+                    Files.deleteIfExists(deltaPath);
                 } else {
-                    content.write(getEntryData(Path.of(path), blobId));
+                    writeIndex(deltaPath, baseChecksum(), null, deltaEntries, sortedEntryPaths, removedPaths);
+                }
+            }
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Writes the merge of lower, upper & the new entries to the target. When a path is present in
+     * more than one source the new entry wins over upper, which wins over lower. Existing entries
+     * of removed paths are left out. A delta file gets the checksum of its base as link, which is
+     * empty without a base, the base itself gets none. The new file is written next to the target
+     * & renamed over it only once it is complete.
+     */
+    private void writeIndex(Path target, byte[] baseLink, IndexReader lower, IndexReader upper, List<byte[]> newPaths, Set<String> removedPaths) throws IOException {
+        int entryCount = mergeEntries(lower, upper, newPaths, removedPaths, null);
+
+        MessageDigest digest = Hashing.newChecksum();
+        Path tempPath = Files.createTempFile(indexPath.getParent(), "index", ".tmp");
+        try {
+            try (DigestOutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tempPath.toFile()), 64 * 1024), digest)) {
+                out.write(getHeader(entryCount));
+                mergeEntries(lower, upper, newPaths, removedPaths, out);
+                if(baseLink != null) {
+                    out.write(BASE_LINK.getBytes(StandardCharsets.US_ASCII));
+                    out.write(ByteBuffer.allocate(4).putInt(baseLink.length).array());
+                    out.write(baseLink);
+                }
+                out.write(cacheTree.toExtension());
+                if(monitorState != null) out.write(monitorState.toExtension());
+
+                out.on(false);
+                out.write(digest.digest());     //SHA-1 hash of the index contents is stored at its end
+            }
+            Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Walks all three sorted sources in step & writes the winning entry for every path, existing
+     * entries are copied byte for byte from their mapping. Entries that were racily clean in the file
+     * they come from are smudged, the new file is newer than them & would otherwise make them look
+     * clean. Without an output stream only the number of entries is counted, which is needed up front
+     * for the header.
+     */
+    private int mergeEntries(IndexReader lower, IndexReader upper, List<byte[]> newPaths, Set<String> removedPaths, OutputStream out) throws IOException {
+        int lowerCount = (lower == null) ? 0 : lower.size();
+        int upperCount = (upper == null) ? 0 : upper.size();
+        IndexEntry lowerView = (lower == null) ? null : lower.view();
+        IndexEntry upperView = (upper == null) ? null : upper.view();
+
+        byte[] scratch = new byte[256];
+        int l = 0, u = 0, n = 0, count = 0;
+
+        while(l < lowerCount || u < upperCount || n < newPaths.size()) {
+            IndexEntry lowerEntry = (l < lowerCount) ? lower.moveTo(lowerView, l) : null;
+            IndexEntry upperEntry = (u < upperCount) ? upper.moveTo(upperView, u) : null;
+            byte[] newPath = (n < newPaths.size()) ? newPaths.get(n) : null;
+
+            int cmpExisting = (lowerEntry == null) ? 1 : (upperEntry == null) ? -1 : lowerEntry.comparePath(upperEntry);
+            IndexEntry existing = (cmpExisting < 0) ? lowerEntry : upperEntry;
+            int cmpNew = (newPath == null) ? -1 : (existing == null) ? 1 : existing.comparePath(newPath);
+
+            boolean removed = false;
+            if(cmpNew < 0) {
+                removed = !removedPaths.isEmpty() && removedPaths.contains(existing.path());
+                if(out != null && !removed) {
+                    FileTime sourceTime = (existing == lowerEntry) ? modifiedTime(lower) : modifiedTime(upper);
+                    existing.writeTo(out, scratch, existing.mtime().compareTo(sourceTime) >= 0);
+                }
+            } else {
+                if(out != null) {
+                    String path = new String(newPath, StandardCharsets.UTF_8);
+                    out.write(getEntryData(Path.of(path), stagedFiles.get(path)));
                 }
-            } catch (IOException e) {
-                /**
-                 * Have to do this as we are not allowed to throw checked exceptions because the accept(T t, U u)
-                 * method in the java.util.function.BiConsumer<T, U> interface doesn't declare any exceptions
-                 */
-                throw new RuntimeException(e);
+                n++;
             }
-        });
 
-        byte[] byteContent = content.toByteArray();
-        String indexId = DigestUtils.sha1Hex(byteContent);      //Generate SHA-1 hash for contents of index file
+            //Existing entries with the written path are skipped, they have been replaced
+            if(cmpNew <= 0) {
+                if(cmpExisting <= 0 && lowerEntry != null) l++;
+                if(cmpExisting >= 0 && upperEntry != null) u++;
+            }
+            if(!removed) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Persists the cache tree after a commit has written new trees. If the index changed since it
+     * was loaded the trees may no longer match its entries, so nothing is written in that case.
+     * Only the small delta file is rewritten, an empty one is created if there was none.
+     */
+    public void writeCacheTree() throws IOException {
+        Trace.Span span = Trace.span("index.write_cache_tree");
+        try {
+            CacheTree updatedTree = cacheTree;
+            rewriteDelta(() -> cacheTree = updatedTree);
+        } finally {
+            span.close();
+        }
+    }
+
+    // Persists what a scan of the workspace found, same as the cache tree it is dropped if the index changed
+    public void writeMonitorState(MonitorState state) throws IOException {
+        Trace.Span span = Trace.span("index.write_monitor_state");
+        try {
+            rewriteDelta(() -> monitorState = state);
+        } finally {
+            span.close();
+        }
+    }
+
+    // Rewrites the delta file with the entries unchanged, provided no other write happened since the load
+    @SuppressWarnings("try")
+    private void rewriteDelta(Runnable extensionUpdate) throws IOException {
+        FileTime loadedBaseTime = baseModifiedTime;
+        FileTime loadedDeltaTime = deltaModifiedTime;
 
-        OutputStream out = new BufferedOutputStream(new FileOutputStream(indexPath.toFile()));
-        out.write(byteContent);
-        out.write(HexFormat.of().parseHex(indexId));
-        out.close();
+        try (LockFile lock = LockFile.acquire(indexPath)) {
+            loadIndex();
+            if(!sameTime(loadedBaseTime, baseModifiedTime) || !sameTime(loadedDeltaTime, deltaModifiedTime)) return;
+
+            extensionUpdate.run();
+            writeIndex(deltaPath, baseChecksum(), null, deltaEntries, List.of(), Set.of());
+        }
     }
 
-    private byte[] getEntryData(Path path, String blobId) throws IOException {
-        Map<String, Object> meta = Files.readAttributes(path, "unix:*");
+    // Sorted view over all entries of the loaded index
+    public IndexIterator iterator() {
+        return new IndexIterator(baseEntries, deltaEntries);
+    }
+
+    public CacheTree getCacheTree() {
+        return cacheTree;
+    }
+
+    // Null unless a command running in a daemon with a file system monitor has scanned the workspace
+    public MonitorState getMonitorState() {
+        return monitorState;
+    }
+
+    public boolean isTracked(String path) {
+        return lookupId(path) != null;
+    }
+
+    // Blob id currently staged for the path, or null if it isn't tracked
+    public ObjectId lookupId(String path) {
+        IndexEntry entry = findEntry(path);
+        return (entry == null) ? null : entry.blobId();
+    }
+
+    // Mode currently staged for the path, 0 if it isn't tracked
+    public int lookupMode(String path) {
+        IndexEntry entry = findEntry(path);
+        return (entry == null) ? 0 : entry.mode();
+    }
+
+    // Entry of the delta file if it has one for the path, otherwise that of the base
+    private IndexEntry findEntry(String path) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        IndexEntry entry;
+        if(deltaEntries != null && deltaEntries.find(pathBytes, entry = deltaEntries.view()) >= 0) return entry;
+        if(baseEntries != null && baseEntries.find(pathBytes, entry = baseEntries.view()) >= 0) return entry;
+        return null;
+    }
+
+    // Mode a file with these "unix:*" attributes is staged with, git only tells executable files from others
+    static int fileMode(Map<String, Object> stat) {
+        return ((((Number) stat.get("mode")).intValue() & 0100) != 0) ? 0100755 : 0100644;
+    }
+
+    private byte[] baseChecksum() {
+        return (baseEntries == null) ? new byte[0] : baseEntries.checksum();
+    }
+
+    // Modification time of the loaded file the reader maps
+    private FileTime modifiedTime(IndexReader entries) {
+        return (entries == baseEntries) ? baseModifiedTime : deltaModifiedTime;
+    }
+
+    private static boolean sameTime(FileTime first, FileTime second) {
+        return (first == null) ? second == null : first.equals(second);
+    }
+
+    private byte[] getEntryData(Path path, StagedFile staged) throws IOException {
+        Map<String, Object> meta = staged.stat();
 
         byte[] ctime_s = ByteBuffer.allocate(4)
                 .putInt((int) (((FileTime)meta.get("ctime")).toMillis()/1000))
@@ -93,7 +334,7 @@ public class Index {
 
         //In git mode can only take two values depending on whether the file is executable or not
         byte[] mode =  ByteBuffer.allocate(4)
-                .putInt(Files.isExecutable(path) ? 0100755 : 0100644)
+                .putInt(fileMode(meta))
                 .array();
 
         byte[] uid = ByteBuffer.allocate(4)
@@ -114,7 +355,7 @@ public class Index {
          * changes to the index file
          */
         byte[] fileName = path.toString()
-                .getBytes(StandardCharsets.US_ASCII);
+                .getBytes(StandardCharsets.UTF_8);
 
         //If filename length exceeds 2 byte range then we just use 0xffff instead
         byte[] nameLength = ByteBuffer.allocate(2)
@@ -132,7 +373,7 @@ public class Index {
         out.write(uid);
         out.write(gid);
         out.write(size);
-        out.write(HexFormat.of().parseHex(blobId));
+        out.write(staged.blobId().toBytes());
         out.write(nameLength);
         out.write(fileName);
 
@@ -161,52 +402,130 @@ public class Index {
     }
 
     public void loadIndex() throws IOException {
-        byte[] indexData = Files.readAllBytes(indexPath);
-
-        if(!validateChecksum(indexData)) {
-            System.out.println("Index file checksum validation failed");
-            System.exit(1);
+        Trace.Span span = Trace.span("index.load");
+        try {
+            //Loading takes no lock, if the base was replaced while the files were opened it starts over
+            BasicFileAttributes before;
+            BasicFileAttributes after;
+            do {
+                before = attributes(indexPath);
+                openFiles(before);
+                after = attributes(indexPath);
+            } while(!sameFile(before, after));
+
+            IndexReader current = (deltaEntries != null) ? deltaEntries : baseEntries;
+            cacheTree = CacheTree.parse((current == null) ? null : current.extension(CacheTree.SIGNATURE));
+            monitorState = MonitorState.parse((current == null) ? null : current.extension(MonitorState.SIGNATURE));
+        } finally {
+            span.close();
         }
+    }
 
-        int entryCount = ByteBuffer.wrap(
-                Arrays.copyOfRange(indexData, 8, 12))
-                .getInt();
+    private void openFiles(BasicFileAttributes baseAttributes) throws IOException {
+        baseEntries = null;
+        deltaEntries = null;
+        baseModifiedTime = null;
+        deltaModifiedTime = null;
 
-        //Entry data is present after first 12 bytes of header
-        int entryStart = 12;
+        if(baseAttributes != null) {
+            baseModifiedTime = baseAttributes.lastModifiedTime();
+            baseEntries = openValidated(indexPath);
+        }
 
-        for(int i = 0; i < entryCount; i++) {
-            int entryEnd = entryStart + 64 - 1;
+        BasicFileAttributes deltaAttributes = attributes(deltaPath);
+        if(deltaAttributes == null) return;
 
-            /**
-             * Due to null byte paddding done during index creation,
-             * entry lenths are always multiple of 8
-             */
-            while(indexData[entryEnd] != 0) entryEnd += 8;
+        IndexReader delta;
+        try {
+            delta = openValidated(deltaPath);
+        } catch (NoSuchFileException e) {
+            return;     //Deleted by a consolidation, which replaced the base first
+        }
 
-            insertEntry(Arrays.copyOfRange(indexData, entryStart, entryEnd+1));
-            entryStart = entryEnd+1;
+        //Deltas without a link predate it & can't be checked
+        ByteBuffer link = delta.extension(BASE_LINK);
+        if(link == null || link.equals(ByteBuffer.wrap(baseChecksum()))) {
+            deltaModifiedTime = deltaAttributes.lastModifiedTime();
+            deltaEntries = delta;
         }
     }
 
-    // Check for index file data corruption before loading the data
-    private boolean validateChecksum(byte[] indexData) {
-        int contentSize = indexData.length - 20;
-        byte[] content = Arrays.copyOfRange(indexData, 0 , contentSize);
-        byte[] checkSum = Arrays.copyOfRange(indexData, contentSize, indexData.length);
+    // Null when the file doesn't exist
+    private static BasicFileAttributes attributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
 
-        String oldSHA = HexFormat.of().formatHex(checkSum);
-        String newSHA = DigestUtils.sha1Hex(content);
+    // Files are only ever replaced through a rename, which gives the new one a different file key
+    private static boolean sameFile(BasicFileAttributes first, BasicFileAttributes second) {
+        if(first == null || second == null) return first == second;
+        return Objects.equals(first.fileKey(), second.fileKey()) && first.lastModifiedTime().equals(second.lastModifiedTime());
+    }
 
-        return newSHA.equals(oldSHA);
+    private IndexReader openValidated(Path path) throws IOException {
+        IndexReader reader = IndexReader.open(path);
+        if(reader == null) {
+            System.out.println("Index file checksum validation failed");
+            CommandExit.exit(1);
+        }
+        return reader;
     }
 
-    private void insertEntry(byte[] entryData) {
-        String path = new String(Arrays.copyOfRange(entryData, 62, entryData.length));
-        path = path.replace("\0", "");
+    /**
+     * Stat cache lookup used by add. Returns the stored blobId when the stat data recorded for
+     * this path still matches the file on disk, so the file doesn't have to be read & hashed again.
+     * Returns null when the entry is missing, the stat data differs or the entry is racily clean.
+     */
+    public ObjectId lookupUnchanged(String path, Map<String, Object> meta) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        IndexEntry entry;
+        FileTime indexModifiedTime;
+
+        if(deltaEntries != null && deltaEntries.find(pathBytes, entry = deltaEntries.view()) >= 0) {
+            indexModifiedTime = deltaModifiedTime;
+        } else if(baseEntries != null && baseEntries.find(pathBytes, entry = baseEntries.view()) >= 0) {
+            indexModifiedTime = baseModifiedTime;
+        } else {
+            return null;
+        }
+
+        FileTime ctime = (FileTime) meta.get("ctime");
+        FileTime mtime = (FileTime) meta.get("lastModifiedTime");
+
+        boolean statMatches = entry.ctimeSeconds() == (int) (ctime.toMillis()/1000)
+                && entry.ctimeNanos() == ctime.toInstant().getNano()
+                && entry.mtimeSeconds() == (int) (mtime.toMillis()/1000)
+                && entry.mtimeNanos() == mtime.toInstant().getNano()
+                && entry.dev() == ((Number) meta.get("dev")).intValue()
+                && entry.inode() == ((Number) meta.get("ino")).intValue()
+                && entry.size() == ((Number) meta.get("size")).intValue();
+        if(!statMatches) return null;
 
-        entryIds.put(path, null);
-        existingEntryData.put(path, entryData);
+        /**
+         * A file modified in the same instant the index was written could have been changed again
+         * without its mtime moving, so such entries are racily clean & have to be hashed.
+         */
+        if(mtime.compareTo(indexModifiedTime) >= 0) return null;
+
+        //A smudged entry has a size of 0, for an empty file that only matches if the entry is empty as well
+        ObjectId blobId = entry.blobId();
+        if(entry.size() == 0 && !blobId.equals(emptyBlobId())) return null;
+
+        return blobId;
+    }
+
+    // Depends on the repo's object format, which is only read if an entry with a size of 0 comes up
+    private ObjectId emptyBlobId() {
+        ObjectId id = emptyBlobId;
+        if(id == null) {
+            Blob empty = new Blob(new byte[0]);
+            empty.getContent(ObjectStore.readObjectFormat(indexPath.getParent()));
+            emptyBlobId = id = empty.getId();
+        }
+        return id;
     }
 
     // Returns existing entries in index file & their corresponding blobIds
@@ -214,11 +533,17 @@ public class Index {
         loadIndex();
         HashMap<String, Blob> trackedEntries = new HashMap<>();
 
-        //Extract blobId from index entry data
-        existingEntryData.forEach((path, data) -> {
-            Blob blob = new Blob(HexFormat.of().formatHex(Arrays.copyOfRange(data, 40, 60)), Files.isExecutable(Path.of(path)) ? "100755" : "100644");
-            trackedEntries.put(path, blob);
-        });
+        //Delta entries are put last so they replace the base entries for the same path
+        for(IndexReader entries : new IndexReader[] {baseEntries, deltaEntries}) {
+            if(entries == null) continue;
+
+            //Mode is taken from the entry itself, so no file has to be stat-ed here
+            IndexEntry entry = entries.view();
+            for(int i = 0; i < entries.size(); i++) {
+                entries.moveTo(entry, i);
+                trackedEntries.put(entry.path(), new Blob(entry.blobId(), Integer.toOctalString(entry.mode())));
+            }
+        }
 
         return trackedEntries;
     }
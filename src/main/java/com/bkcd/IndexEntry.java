@@ -0,0 +1,118 @@
+package com.bkcd;
+
+import com.bkcd.Objects.ObjectId;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Flyweight view over one entry of a memory mapped index. The same instance is moved from
+ * entry to entry, fields are read straight out of the mapping so iterating over the index
+ * doesn't allocate anything per entry.
+ *
+ * Entry layout (offsets in bytes):
+ *   0 ctime_s | 4 ctime_n | 8 mtime_s | 12 mtime_n | 16 dev | 20 inode | 24 mode | 28 uid
+ *   32 gid | 36 size | 40 blob id (20) | 60 name length (2) | 62 name, null padded to 8 bytes
+ */
+public class IndexEntry {
+    static final int NAME_OFFSET = 62;
+
+    private final ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    IndexEntry(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    void moveTo(int offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int ctimeSeconds() { return buffer.getInt(offset); }
+    public int ctimeNanos() { return buffer.getInt(offset + 4); }
+    public int mtimeSeconds() { return buffer.getInt(offset + 8); }
+    public int mtimeNanos() { return buffer.getInt(offset + 12); }
+    public int dev() { return buffer.getInt(offset + 16); }
+    public int inode() { return buffer.getInt(offset + 20); }
+    public int mode() { return buffer.getInt(offset + 24); }
+    public int size() { return buffer.getInt(offset + 36); }
+
+    public FileTime mtime() {
+        return FileTime.from(Instant.ofEpochSecond(Integer.toUnsignedLong(mtimeSeconds()), mtimeNanos()));
+    }
+
+    public ObjectId blobId() {
+        return ObjectId.fromBuffer(buffer, offset + 40);
+    }
+
+    public int nameLength() {
+        int length = buffer.getShort(offset + 60) & 0xffff;
+        if(length < 0xffff) return length;
+
+        //Names that don't fit the length field are null terminated
+        int end = offset + NAME_OFFSET + length;
+        while(buffer.get(end) != 0) end++;
+        return end - offset - NAME_OFFSET;
+    }
+
+    public String path() {
+        byte[] name = new byte[nameLength()];
+        buffer.get(offset + NAME_OFFSET, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    // Unsigned byte order comparison of this entry's path against the given path
+    public int comparePath(byte[] path) {
+        int nameLength = nameLength();
+        int common = Math.min(nameLength, path.length);
+        for(int i = 0; i < common; i++) {
+            int cmp = Integer.compare(buffer.get(offset + NAME_OFFSET + i) & 0xff, path[i] & 0xff);
+            if(cmp != 0) return cmp;
+        }
+        return Integer.compare(nameLength, path.length);
+    }
+
+    public boolean startsWith(byte[] prefix) {
+        if(nameLength() < prefix.length) return false;
+        for(int i = 0; i < prefix.length; i++) {
+            if(buffer.get(offset + NAME_OFFSET + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    public int comparePath(IndexEntry other) {
+        int nameLength = nameLength();
+        int otherLength = other.nameLength();
+        int common = Math.min(nameLength, otherLength);
+        for(int i = 0; i < common; i++) {
+            int cmp = Integer.compare(buffer.get(offset + NAME_OFFSET + i) & 0xff,
+                    other.buffer.get(other.offset + NAME_OFFSET + i) & 0xff);
+            if(cmp != 0) return cmp;
+        }
+        return Integer.compare(nameLength, otherLength);
+    }
+
+    /**
+     * Writes the raw entry, padding included, using the scratch array as the copy buffer. A smudged
+     * entry is written with a size of 0, so its stat data no longer matches the file.
+     */
+    public void writeTo(OutputStream out, byte[] scratch, boolean smudge) throws IOException {
+        int remaining = length;
+        int position = offset;
+        while(remaining > 0) {
+            int chunk = Math.min(remaining, scratch.length);
+            buffer.get(position, scratch, 0, chunk);
+            if(smudge && position == offset) Arrays.fill(scratch, 36, 40, (byte) 0);
+            out.write(scratch, 0, chunk);
+            position += chunk;
+            remaining -= chunk;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.bkcd;
+
+/**
+ * Walks the entries of the base & delta index in sorted path order, as if they were one index.
+ * When both hold the same path only the delta entry is returned. Whole directories can be
+ * skipped with a binary search in both files, so unchanged parts of the tree are never visited.
+ */
+public class IndexIterator {
+    private final IndexReader base;
+    private final IndexReader delta;
+    private final IndexEntry baseView;
+    private final IndexEntry deltaView;
+    private int basePosition = 0;
+    private int deltaPosition = 0;
+
+    IndexIterator(IndexReader base, IndexReader delta) {
+        this.base = base;
+        this.delta = delta;
+        this.baseView = (base == null) ? null : base.view();
+        this.deltaView = (delta == null) ? null : delta.view();
+    }
+
+    public boolean hasEntry() {
+        return hasBase() || hasDelta();
+    }
+
+    // The current entry, valid until the iterator is moved
+    public IndexEntry current() {
+        return (compare() < 0) ? baseView : deltaView;
+    }
+
+    public void next() {
+        int cmp = compare();
+        if(cmp <= 0) basePosition++;
+        if(cmp >= 0) deltaPosition++;
+    }
+
+    public void skipPrefix(byte[] prefix) {
+        if(base != null) basePosition = base.skipPrefix(prefix, basePosition, baseView);
+        if(delta != null) deltaPosition = delta.skipPrefix(prefix, deltaPosition, deltaView);
+    }
+
+    // Negative when the base entry comes first, positive for the delta entry, 0 when they are the same path
+    private int compare() {
+        boolean hasBase = hasBase();
+        boolean hasDelta = hasDelta();
+        if(hasBase) base.moveTo(baseView, basePosition);
+        if(hasDelta) delta.moveTo(deltaView, deltaPosition);
+
+        if(!hasDelta) return -1;
+        if(!hasBase) return 1;
+        return baseView.comparePath(deltaView);
+    }
+
+    private boolean hasBase() {
+        return base != null && basePosition < base.size();
+    }
+
+    private boolean hasDelta() {
+        return delta != null && deltaPosition < delta.size();
+    }
+}
@@ -0,0 +1,181 @@
+package com.bkcd;
+
+import com.bkcd.Objects.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read only access to the index file through a memory mapping. Opening the index validates the
+ * checksum in a single streaming pass over the mapping & records where each entry starts, which
+ * is the only per entry state kept on the heap. Entries are sorted by path so lookups are a
+ * binary search over those offsets.
+ */
+public class IndexReader {
+    private static final int HEADER_SIZE = 12;
+    private static final int CHECKSUM_SIZE = 20;
+
+    /**
+     * Validated readers by path, reused as long as the file is the same one. The index is only ever
+     * replaced through a rename, so a new file always shows up as a different file key.
+     * Within a single command this saves little, the daemon reuses them across commands.
+     */
+    private static final ConcurrentHashMap<Path, IndexReader> openReaders = new ConcurrentHashMap<>();
+
+    private final MappedByteBuffer buffer;
+    private final int[] entryOffsets;
+    private final int entriesEnd;
+    private BasicFileAttributes fileAttributes;
+
+    private IndexReader(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+
+        int entryCount = buffer.getInt(8);
+        this.entryOffsets = new int[entryCount];
+
+        //Entry data is present after first 12 bytes of header
+        IndexEntry view = new IndexEntry(buffer);
+        int entryStart = HEADER_SIZE;
+        for(int i = 0; i < entryCount; i++) {
+            entryOffsets[i] = entryStart;
+            view.moveTo(entryStart, 0);
+
+            /**
+             * Due to null byte paddding done during index creation, entry lengths are
+             * the next multiple of 8 that leaves room for at least one null byte
+             */
+            entryStart += (IndexEntry.NAME_OFFSET + view.nameLength()) / 8 * 8 + 8;
+        }
+        this.entriesEnd = entryStart;
+    }
+
+    // Returns null when the index file fails checksum validation
+    public static IndexReader open(Path indexPath) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(indexPath, BasicFileAttributes.class);
+        IndexReader cached = openReaders.get(indexPath);
+        if(cached != null && sameFile(cached.fileAttributes, attributes)) return cached;
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if(buffer.capacity() < HEADER_SIZE + CHECKSUM_SIZE || !validateChecksum(buffer)) {
+            openReaders.remove(indexPath);
+            return null;
+        }
+
+        IndexReader reader = new IndexReader(buffer);
+        reader.fileAttributes = attributes;
+        openReaders.put(indexPath, reader);
+        return reader;
+    }
+
+    private static boolean sameFile(BasicFileAttributes first, BasicFileAttributes second) {
+        return first.fileKey() != null && first.fileKey().equals(second.fileKey())
+                && first.size() == second.size()
+                && first.lastModifiedTime().equals(second.lastModifiedTime());
+    }
+
+    // Check for index file data corruption before loading the data
+    private static boolean validateChecksum(MappedByteBuffer buffer) {
+        int contentSize = buffer.capacity() - CHECKSUM_SIZE;
+
+        byte[] newSHA = Hashing.checksum(buffer.slice(0, contentSize));
+
+        for(int i = 0; i < CHECKSUM_SIZE; i++) {
+            if(buffer.get(contentSize + i) != newSHA[i]) return false;
+        }
+        return true;
+    }
+
+    public int size() {
+        return entryOffsets.length;
+    }
+
+    // A new flyweight positioned on no entry, move it with moveTo(view, position)
+    public IndexEntry view() {
+        return new IndexEntry(buffer);
+    }
+
+    public IndexEntry moveTo(IndexEntry view, int position) {
+        int end = (position + 1 < entryOffsets.length) ? entryOffsets[position + 1] : entriesEnd;
+        view.moveTo(entryOffsets[position], end - entryOffsets[position]);
+        return view;
+    }
+
+    // Position of the entry with this path, or -1 if the path isn't tracked
+    public int find(byte[] path, IndexEntry view) {
+        int low = 0;
+        int high = entryOffsets.length - 1;
+
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = moveTo(view, mid).comparePath(path);
+            if(cmp < 0) {
+                low = mid + 1;
+            } else if(cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * First position at or after from whose path doesn't start with the prefix. Entries sharing a
+     * prefix are contiguous in sorted order, so a directory can be skipped with a binary search.
+     */
+    public int skipPrefix(byte[] prefix, int from, IndexEntry view) {
+        int low = from;
+        int high = entryOffsets.length;
+
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            moveTo(view, mid);
+            if(view.startsWith(prefix) || view.comparePath(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Checksum stored at the end of the file, it identifies this version of the index
+    public byte[] checksum() {
+        byte[] checksum = new byte[CHECKSUM_SIZE];
+        buffer.get(buffer.capacity() - CHECKSUM_SIZE, checksum);
+        return checksum;
+    }
+
+    /**
+     * Extensions follow the last entry, each one is a 4 byte signature, a 4 byte length & its data.
+     * Returns the data of the extension with the given signature or null if it isn't present.
+     */
+    public ByteBuffer extension(String signature) {
+        byte[] expected = signature.getBytes(StandardCharsets.US_ASCII);
+        int position = entriesEnd;
+        int end = buffer.capacity() - CHECKSUM_SIZE;
+
+        while(position + 8 <= end) {
+            int length = buffer.getInt(position + 4);
+            boolean matches = true;
+            for(int i = 0; i < 4; i++) {
+                if(buffer.get(position + i) != expected[i]) matches = false;
+            }
+            if(matches) return buffer.slice(position + 8, length);
+            position += 8 + length;
+        }
+        return null;
+    }
+}
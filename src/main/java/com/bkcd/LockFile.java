@@ -0,0 +1,71 @@
+package com.bkcd;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Exclusive lock on a file between processes, held by creating "<file>.lock" next to it. Only the
+ * process that created the lock file may change the file, readers never look at locks & never wait.
+ * A lock held by another process is retried with growing pauses for up to LOCK_TIMEOUT_MILLIS.
+ *
+ * The lock file doubles as the new content: commit() writes it & renames it over the file, so the
+ * change is atomic & releases the lock at the same time. Closing without a commit just releases it.
+ */
+public class LockFile implements AutoCloseable {
+    private static final long LOCK_TIMEOUT_MILLIS = 2000;
+    private static final long MAX_PAUSE_MILLIS = 100;
+
+    private final Path target;
+    private final Path lockPath;
+    private boolean held = true;
+
+    private LockFile(Path target, Path lockPath) {
+        this.target = target;
+        this.lockPath = lockPath;
+    }
+
+    public static LockFile acquire(Path target) throws IOException {
+        Path lockPath = target.resolveSibling(target.getFileName() + ".lock");
+        long deadline = System.nanoTime() + LOCK_TIMEOUT_MILLIS * 1_000_000;
+        long pause = 1;
+
+        while(true) {
+            try {
+                Files.createFile(lockPath);
+                return new LockFile(target, lockPath);
+            } catch (FileAlreadyExistsException e) {
+                if(System.nanoTime() > deadline) {
+                    throw new IOException("Unable to lock " + target.getFileName() + ", " + lockPath + " exists. "
+                            + "If no other delta process is running remove it & try again.");
+                }
+            }
+
+            Trace.count("lock.retries", 1);
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + lockPath, e);
+            }
+            pause = Math.min(pause * 2, MAX_PAUSE_MILLIS);
+        }
+    }
+
+    // Replaces the locked file with the content & releases the lock
+    public void commit(byte[] content) throws IOException {
+        Files.write(lockPath, content);
+        Files.move(lockPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        held = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(held) {
+            Files.deleteIfExists(lockPath);
+            held = false;
+        }
+    }
+}
@@ -2,17 +2,25 @@ package com.bkcd;
 
 import com.bkcd.Objects.Blob;
 import com.bkcd.Objects.Commit;
+import com.bkcd.Objects.Hashing;
+import com.bkcd.Objects.ObjectId;
 import com.bkcd.Objects.Tree;
+import com.bkcd.Pack.DeltaPacker;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.stream.Stream;
-import java.util.zip.InflaterInputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Main {
     private static String repoPath = System.getProperty("user.dir");
@@ -23,9 +31,44 @@ public class Main {
      */
     private static ObjectStore storage = new ObjectStore(Path.of(repoPath, ".git/objects"));
     private static Refs refs = new Refs(repoPath +"/.git");
-//    private static List<Path> IGNORE_FILES = new ArrayList<>();
+    private static CommitGraph commitGraph = null;
+    // Content larger than this isn't diffed line by line, like git's core.bigFileThreshold
+    private static final int DIFF_MAX_SIZE = 512 * 1024 * 1024;
+    private static FsMonitor monitor = null;       //Only running inside a daemon started with --watch
 
     public static void main(String[] args) throws IOException {
+        List<String> commandArgs = new ArrayList<>();
+        String traceOutput = System.getenv("DELTA_TRACE");
+        boolean trace = traceOutput != null && !traceOutput.isEmpty() && !traceOutput.equals("0");
+
+        // --trace prints a summary table, --trace=<file> writes a Chrome trace-event file
+        for(String arg : args) {
+            if(arg.equals("--trace") || arg.startsWith("--trace=")) {
+                trace = true;
+                traceOutput = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : null;
+            } else {
+                commandArgs.add(arg);
+            }
+        }
+        // Traced commands always run here, the trace has to be collected by this process
+        if(trace) {
+            Trace.enable(traceOutput);
+        } else if(!commandArgs.isEmpty() && forwardToDaemon(commandArgs)) {
+            Integer code = DaemonClient.run(Daemon.socketPath(Path.of(repoPath)), commandArgs.toArray(new String[0]));
+            if(code != null) System.exit(code);
+        }
+
+        Trace.Span span = Trace.span("command." + commandArgs.get(0));
+        try {
+            runCommand(commandArgs.toArray(new String[0]));
+        } finally {
+            span.close();
+        }
+    }
+
+    private static void runCommand(String[] args) throws IOException {
+        // Refs are cached for the duration of one command, a daemon must not see those of the last one
+        refs = new Refs(repoPath + "/.git");
         String command = args[0];
         switch (command) {
             case "init" -> {
@@ -33,89 +76,213 @@ public class Main {
             }
 
             case "add" -> {
-                //TreeMap will take care of both sorting & duplicate keys
-                HashMap<String,String> indexEntries = new HashMap<>();
+                List<Path> paths = new ArrayList<>();
+                int jobs = Runtime.getRuntime().availableProcessors();
 
                 for(int i = 1; i < args.length; i++) {
-                    Path path = Path.of(args[i]).toAbsolutePath().normalize();
-
-                    //For now only .git folder is part of ignored files. Extend this feature later.
-                    try (Stream<Path> dirContent = Files.walk(path)) {
-                        dirContent.filter(filePath -> !filePath.startsWith(Path.of(repoPath,".git")))
-                                .filter(Files::isRegularFile)
-                                .forEach(filePath -> {
-                                    String blobId = saveBlob(filePath);
-                                    Path relativeFilePath = Path.of(repoPath).relativize(filePath);
-                                    indexEntries.put(relativeFilePath.toString(), blobId);
-                                });
+                    if(args[i].equals("--jobs") && i + 1 < args.length) {
+                        jobs = parseCount("--jobs", args[++i]);
+                    } else {
+                        paths.add(Path.of(args[i]).toAbsolutePath().normalize());
                     }
                 }
 
+                // The loaded index doubles as a stat cache so unchanged files are never read
                 Index index = new Index();
+                index.loadIndex();
+
+                StagingPipeline pipeline = new StagingPipeline(Path.of(repoPath), storage, index, jobs);
+                List<Path> changedFiles = monitoredFiles(index, paths);
+                HashMap<String, Index.StagedFile> indexEntries = (changedFiles == null) ? pipeline.stage(paths) : pipeline.stageFiles(changedFiles);
+
                 index.addFiles(indexEntries);
             }
 
             // To add message for a commit there is no need for -m flag
             case "commit" -> {
-                HashMap<String, Blob> indexData = new Index().fetchIndexData();
-                Tree tree = new Tree();
-
-                indexData.forEach((path, blob) -> {
-                    tree.add(path, blob);
-                });
+                // Only directories containing changed entries are rebuilt, the rest come from the cache tree
+                Index index = new Index();
+                index.loadIndex();
+                TreeBuilder treeBuilder = new TreeBuilder(index);
+                Tree tree = treeBuilder.build();
 
-                tree.generate(storage);
+                Trace.Span span = Trace.span("tree.generate");
+                try {
+                    tree.generate(storage);
+                } finally {
+                    span.close();
+                }
+                if(treeBuilder.updateCacheTree()) {
+                    index.writeCacheTree();
+                }
 
                 String commitMessage = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
-                String parentId = "root-commit";
 
-                try {
-                    //If HEAD file doesn't point to a ref file then we are at root commit
-                    parentId = Files.readString(Path.of(repoPath, ".git", refs.retrieveHead()));
-                } catch (IOException e) {}
+                //If the current branch has no commit yet we are at root commit
+                ObjectId parentId = refs.headCommit();
 
-                Commit commit = new Commit(parentId ,tree.getId(), commitMessage);
+                Commit commit = new Commit((parentId == null) ? "root-commit" : parentId.toHex(), tree.getId(), commitMessage);
                 storage.store(commit);
-                refs.updateRef(commit.getId());
+
+                // Another process committing to the branch meanwhile would be lost if the branch was just overwritten
+                if(!refs.updateRef(parentId, commit.getId())) {
+                    System.err.println("The current branch was updated by another process, commit again");
+                    CommandExit.exit(1);
+                }
+                commitGraph().update(storage, commit.getId());
             }
 
+            /**
+             * branch <name>              creates a branch at the current commit
+             * branch [--list [<prefix>]]  lists branches starting with the prefix, * marks the current one
+             */
             case "branch" -> {
-                String branchName = args[1];
-                refs.createBranch(branchName);
+                if(args.length == 1 || args[1].equals("--list")) {
+                    String current = refs.retrieveHead();
+                    for(String name : refs.listBranches(args.length > 2 ? args[2] : "").keySet()) {
+                        System.out.println((("refs/heads/" + name).equals(current) ? "* " : "  ") + name);
+                    }
+                } else {
+                    refs.createBranch(args[1]);
+                }
             }
 
+            // Only files that differ between the current & the target commit are written
             case "checkout" -> {
                 String branchName = args[1];
-                refs.updateHead("refs/heads/" + args[1]);
+                if(!refs.branchExists(branchName)) {
+                    System.err.println("Branch with specified name does not exist!");
+                    CommandExit.exit(1);
+                }
+
+                // A branch without commits has no tree to move to, only HEAD changes
+                if(refs.resolve(branchName) != null) {
+                    Index index = new Index();
+                    index.loadIndex();
+                    Checkout checkout = new Checkout(Path.of(repoPath), storage, index, Runtime.getRuntime().availableProcessors());
+
+                    List<TreeDiff.Change> changes = checkout.changes(headTreeId(), commitTreeId(branchName));
+                    List<String> conflicts = checkout.conflicts(changes);
+                    if(!conflicts.isEmpty()) {
+                        System.err.println("Your local changes to the following files would be overwritten by checkout:");
+                        conflicts.forEach(path -> System.err.println("\t" + path));
+                        CommandExit.exit(1);
+                    }
+                    checkout.apply(changes);
+                }
+                refs.updateHead("refs/heads/" + branchName);
             }
 
-            // This diff implementation accepts the file path & compares the workspace file to the file present in staging area
+            // Staged changes against HEAD, unstaged changes against the index & untracked files
+            case "status" -> {
+                Index index = new Index();
+                index.loadIndex();
+                WorkspaceScanner scanner = new WorkspaceScanner(Path.of(repoPath), storage.objectFormat(), Runtime.getRuntime().availableProcessors());
+
+                printStatus("Changes to be committed:", new TreeDiff(storage).compareIndex(headTreeId(), index));
+
+                WorkspaceScanner.Result workspace = scanner.scan(index, monitor);
+                printStatus("Changes not staged for commit:", workspace.changes());
+                if(!workspace.untracked().isEmpty()) {
+                    System.out.println("Untracked files:");
+                    workspace.untracked().forEach(path -> System.out.println("\t" + path));
+                }
+            }
+
+            /**
+             * diff [paths...]        workspace against the index, optionally limited to the given paths
+             * diff --cached          index against the HEAD tree
+             * diff <commit> <commit> one commit against another
+             */
             case "diff" -> {
-                HashMap<String, Blob> indexData = new Index().fetchIndexData();
-                String blobId = indexData.get(args[1]).getId();
-                Path blobPath = Path.of(repoPath,
-                                    ".git/objects",
-                                    blobId.substring(0,2),
-                                    blobId.substring(2));
-                byte[] blobData = new InflaterInputStream(new FileInputStream(blobPath.toFile())).readAllBytes();
-
-                // Data starts after null
-                int nullIndex = 0;
-                for(int i = 0; i < blobData.length; i++) {
-                    if(blobData[i] == 0x00) {
-                        nullIndex = i;
-                        break;
+                Index index = new Index();
+                index.loadIndex();
+                TreeDiff treeDiff = new TreeDiff(storage);
+
+                if(args.length > 1 && args[1].equals("--cached")) {
+                    printDiffs(treeDiff.compareIndex(headTreeId(), index), false);
+                } else if(args.length == 3 && ObjectId.isHex(args[1]) && ObjectId.isHex(args[2])) {
+                    printDiffs(treeDiff.compareTrees(commitTreeId(args[1]), commitTreeId(args[2])), false);
+                } else {
+                    List<String> filters = new ArrayList<>();
+                    for(int i = 1; i < args.length; i++) {
+                        filters.add(Path.of(repoPath).relativize(Path.of(args[i]).toAbsolutePath().normalize()).toString());
+                    }
+
+                    List<TreeDiff.Change> changes = new WorkspaceScanner(Path.of(repoPath), storage.objectFormat(), Runtime.getRuntime().availableProcessors())
+                            .compareIndex(index);
+                    changes.removeIf(change -> !filters.isEmpty() && filters.stream().noneMatch(filter ->
+                            filter.isEmpty() || change.path().equals(filter) || change.path().startsWith(filter + "/")));
+                    printDiffs(changes, true);
+                }
+            }
+
+            /**
+             * log [-n <count>] [<commit>]     history of the commit, HEAD by default
+             * log [-n <count>] <from>..<to>   commits of to that aren't part of from's history
+             * Walks the commit graph, commit objects are only read for their messages.
+             */
+            case "log" -> {
+                int limit = Integer.MAX_VALUE;
+                String revision = "HEAD";
+                for(int i = 1; i < args.length; i++) {
+                    if(args[i].equals("-n") && i + 1 < args.length) {
+                        limit = parseCount("-n", args[++i]);
+                    } else {
+                        revision = args[i];
                     }
                 }
-                System.out.println("nullIndex: " + nullIndex);
-                String[] blobExtract = new String(Arrays.copyOfRange(blobData, nullIndex+1, blobData.length))
-                                            .split("\n");
 
+                CommitGraph graph = commitGraph();
+                String[] range = revision.split("\\.\\.", 2);
+                int position = graph.update(storage, resolveCommit(range[range.length - 1]));
+                int stop = (range.length == 1) ? -1 : graph.mergeBase(graph.update(storage, resolveCommit(range[0])), position);
+
+                for(int shown = 0; position >= 0 && position != stop && shown < limit; shown++) {
+                    ObjectId commitId = graph.commitId(position);
+                    System.out.println("commit " + commitId);
+                    System.out.println("Date:   " + Commit.formatTime(graph.time(position)));
+                    System.out.println();
+                    System.out.println("    " + Commit.parseMessage(storage.reader().body(commitId)).replace("\n", "\n    "));
+                    System.out.println();
+                    position = graph.parent(position);
+                }
+            }
+
+            // Moves loose objects into a pack without recompressing them
+            case "repack" -> {
+                int packed = storage.repack();
+                System.out.println("Packed " + packed + " objects");
+            }
+
+            // Rewrites all objects into delta compressed packs & reports size & read latency before & after
+            case "gc" -> {
+                List<ObjectId> ids = storage.listIds();
+                String before = measureStore(ids);
+
+                DeltaPacker packer = storage.gc(storage.collectPathHints(refs.branchHeads()));
+                int packedRefs = refs.packRefs();
 
-                String[] workspaceData = Files.readAllLines(Path.of(args[1]))
-                                            .toArray(new String[0]);
+                System.out.println("Packed " + packer.getObjectCount() + " objects, " + packer.getDeltaCount() + " as deltas & " + packedRefs + " refs");
+                System.out.println("Before: " + before);
+                System.out.println("After:  " + measureStore(ids));
+            }
 
-                generateDiff(blobExtract, workspaceData);
+            /**
+             * daemon [--watch]  serves commands of this repo over a Unix domain socket until stopped,
+             *                   --watch runs a file system monitor so status & add skip unchanged files
+             * daemon stop       stops the running daemon, handled by the daemon itself
+             */
+            case "daemon" -> {
+                if(args.length > 1 && args[1].equals("stop")) {
+                    System.err.println("No delta daemon running");
+                    CommandExit.exit(1);
+                }
+                if(args.length > 1 && args[1].equals("--watch")) {
+                    monitor = new FsMonitor(Path.of(repoPath));
+                    monitor.start();
+                }
+                new Daemon(Daemon.socketPath(Path.of(repoPath)), Main::runCommand).serve();
             }
 
             // Lists the files currently being tracked by delta
@@ -126,111 +293,201 @@ public class Main {
         }
     }
 
-    public static void generateDiff(String[] oldData, String[] newData) {
-        String[] text1 = newData;
-        String[] text2 = oldData;
-
-        // Build a grid to identify the largest common set of lines between the two text sources
-        int[][] dpGrid = new int[text1.length + 1][text2.length + 1];
+    // init may create a different repo & starting a daemon has to happen in a new process
+    private static boolean forwardToDaemon(List<String> args) {
+        String command = args.get(0);
+        if(command.equals("init")) return false;
+        return !command.equals("daemon") || (args.size() > 1 && args.get(1).equals("stop"));
+    }
 
-        for (int col = text2.length - 1; col >= 0; col--) {
-            for (int row = text1.length - 1; row >= 0; row--) {
-                // If the corresponding lines for this cell are the same...
-                if (text1[row].equals(text2[col])) {
-                    dpGrid[row][col] = 1 + dpGrid[row + 1][col + 1];
-                } else {
-                    dpGrid[row][col] = Math.max(dpGrid[row + 1][col], dpGrid[row][col + 1]);
-                }
+    /**
+     * Files below the given paths the file system monitor considers changed or untracked, null when
+     * no monitor is running or it can't tell & the paths have to be walked.
+     */
+    private static List<Path> monitoredFiles(Index index, List<Path> paths) throws IOException {
+        if(monitor == null || monitor.sync() == null) return null;
+
+        Set<String> candidates = new WorkspaceScanner(Path.of(repoPath), storage.objectFormat(), 1).candidates(index, monitor);
+        if(candidates == null) return null;
+
+        IgnoreRules ignoreRules = new IgnoreRules(Path.of(repoPath));
+        List<Path> files = new ArrayList<>();
+        for(String candidate : candidates) {
+            Path filePath = Path.of(repoPath, candidate);
+            if(paths.stream().anyMatch(filePath::startsWith) && Files.isRegularFile(filePath, LinkOption.NOFOLLOW_LINKS)
+                    && (index.isTracked(candidate) || !ignoreRules.isExcluded(candidate))) {
+                files.add(filePath);
             }
         }
+        return files;
+    }
 
-        // Use the grid constructed above to extract the diff
-        StringBuilder diff = new StringBuilder("");
-        int i = text1.length - 1;
-        int j = text2.length - 1;
-
-        /**
-         * For deletion to take priority over insertion, we traverse the grid from bottom.
-         * And in case dpGrid[i-1][j] & dpGrid[i][j-1] have same value then we prefer adding from text2
-         * rather than removing from text1.
-         * To prioritize addition before removal, we will traverse from the top & prefer the lower value
-         */
-
-        while(!(i < 0 && j < 0)) {
-            if(i*j <= 0) {
-                /**
-                 * First 2 cases are when we run out of either data source, all we have to do then is insert the remaining lines from other source
-                 * Last three conditions cover the cases for 1st row or 1st column traversal
-                 */
-                if(i < 0) {
-                    diff.insert(0, "\n- " + text2[j]);
-                    j--;
-                } else if(j < 0) {
-                    diff.insert(0, "\n+ " + text1[i]);
-                    i--;
-                } else if(text1[i].equals(text2[j])) {
-                    diff.insert(0, "\n  " + text1[i]);
-                    i--;
-                    j--;
-                } else if(i == 0) {
-                    diff.insert(0, "\n- " + text2[j]);
-                    j--;
-                } else if(j == 0) {
-                    diff.insert(0, "\n+ " + text1[i]);
-                    i--;
-                }
-            } else if(text1[i].equals(text2[j])) {
-                diff.insert(0, "\n  " + text1[i]);
-                i--;
-                j--;
-            } else if (dpGrid[i-1][j] >= dpGrid[i][j-1]) {
-                diff.insert(0, "\n+ " + text1[i]);
-                i--;
-            } else {
-                diff.insert(0, "\n- " + text2[j]);
-                j--;
+    // Changes between both versions of the file as a unified diff, empty if they are identical
+    public static String generateDiff(String path, String[] oldData, String[] newData) {
+        String hunks = Diff.unified(oldData, newData);
+        if(hunks.isEmpty()) return "";
+
+        return "--- " + (oldData.length == 0 ? "/dev/null" : "a/" + path) + "\n"
+                + "+++ " + (newData.length == 0 ? "/dev/null" : "b/" + path) + "\n"
+                + hunks;
+    }
+
+    /**
+     * Content diffs are computed in parallel but printed in path order. When the new side
+     * belongs to the workspace it is read from the file rather than from the store.
+     */
+    private static void printDiffs(List<TreeDiff.Change> changes, boolean workspace) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<String>> diffs = new ArrayList<>(changes.size());
+            for(TreeDiff.Change change : changes) {
+                diffs.add(workers.submit(() -> {
+                    byte[] oldContent = change.oldId() == null ? new byte[0] : readForDiff(storage.openBody(change.oldId()));
+                    byte[] newContent;
+                    if(change.newId() == null) {
+                        newContent = new byte[0];
+                    } else if(workspace) {
+                        newContent = readForDiff(Files.newInputStream(Path.of(repoPath, change.path())));
+                    } else {
+                        newContent = readForDiff(storage.openBody(change.newId()));
+                    }
+                    String modeChange = change.modeChanged()
+                            ? "mode change " + change.oldMode() + " => " + change.newMode() + " " + change.path() + "\n" : "";
+                    if(oldContent == null || newContent == null) {
+                        return modeChange + "Binary files a/" + change.path() + " and b/" + change.path() + " differ\n";
+                    }
+                    return modeChange + generateDiff(change.path(), splitLines(oldContent), splitLines(newContent));
+                }));
+            }
+
+            for(Future<String> diff : diffs) {
+                System.out.print(diff.get());
             }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to compute diff", e);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    // Whole content of the stream, null when it is too large to diff
+    private static byte[] readForDiff(InputStream in) throws IOException {
+        try (in) {
+            byte[] content = in.readNBytes(DIFF_MAX_SIZE);
+            return content.length == DIFF_MAX_SIZE && in.read() >= 0 ? null : content;
         }
+    }
+
+    private static String[] splitLines(byte[] data) {
+        return data.length == 0 ? new String[0] : new String(data).split("\n");
+    }
+
+    private static void printStatus(String heading, List<TreeDiff.Change> changes) {
+        if(changes.isEmpty()) return;
+
+        System.out.println(heading);
+        for(TreeDiff.Change change : changes) {
+            String label = switch (change.status()) {
+                case 'A' -> "new file:   ";
+                case 'D' -> "deleted:    ";
+                default -> "modified:   ";
+            };
+            System.out.println("\t" + label + change.path());
+        }
+    }
+
+    // Tree of the commit HEAD points to, or null before the first commit
+    private static ObjectId headTreeId() throws IOException {
+        ObjectId head = refs.headCommit();
+        if(head == null) return null;
 
-        System.out.println(diff);
+        CommitGraph graph = commitGraph();
+        return graph.treeId(graph.update(storage, head));
     }
 
+    private static ObjectId commitTreeId(String revision) throws IOException {
+        CommitGraph graph = commitGraph();
+        return graph.treeId(graph.update(storage, resolveCommit(revision)));
+    }
+
+    // Exits when the name doesn't refer to a stored commit
+    private static ObjectId resolveCommit(String revision) throws IOException {
+        ObjectId id = refs.resolve(revision);
+        if(id == null || !storage.contains(id)) {
+            System.err.println("Unknown commit: " + revision);
+            CommandExit.exit(1);
+        }
+        return id;
+    }
+
+    // The graph is kept mapped between daemon requests & only remapped once it has grown
+    private static CommitGraph commitGraph() throws IOException {
+        if(commitGraph == null) {
+            commitGraph = new CommitGraph(Path.of(repoPath, ".git/objects/info/commit-graph"));
+        } else {
+            commitGraph.refresh();
+        }
+        return commitGraph;
+    }
+
+    // init [path] [--object-format sha1|sha256], the format can't change once objects are written
     private static void initializeRepo(String[] args) {
-        if (args.length > 1) {
-            repoPath = args[1];
+        Hashing.ObjectFormat format = Hashing.ObjectFormat.SHA1;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--object-format") && i + 1 < args.length) {
+                format = Hashing.ObjectFormat.parse(args[++i]);
+                if (format == null) {
+                    System.err.println("Unknown object format: " + args[i] + ", expected sha1 or sha256");
+                    CommandExit.exit(1);
+                }
+            } else {
+                repoPath = args[i];
+            }
         }
         Path absolutePath = Path.of(repoPath).toAbsolutePath();
         Path gitDirectory = Path.of(absolutePath.toString(), ".git");
         Path objects = Path.of(gitDirectory.toString(), "objects");
         Path refs = Path.of(gitDirectory.toString(), "refs/heads");
+        // Ids of objects already stored would no longer match their content
+        if (format != Hashing.ObjectFormat.SHA1 && Files.exists(objects)) {
+            System.err.println("The object format can only be set for a new repo");
+            CommandExit.exit(1);
+        }
 
         try {
             Files.createDirectories(objects);
             Files.createDirectories(refs);
             Files.writeString(Path.of(repoPath, ".git/HEAD"), "refs/heads/main");
+            if (format != Hashing.ObjectFormat.SHA1) {
+                Files.writeString(gitDirectory.resolve(ObjectStore.OBJECT_FORMAT_FILE), format.getName());
+            }
         } catch (IOException e) {
             System.err.println("Unable to initialize .git directory");
-            System.exit(1);
+            CommandExit.exit(1);
         }
         System.out.println("Delta repo initialized in: " + gitDirectory);
     }
 
-    private static String saveBlob(Path filePath) {
-        String fileData = null;
-        try {
-            fileData = Files.readString(filePath, StandardCharsets.US_ASCII);
-        } catch (IOException e) {
-            System.err.println("Unable to read file: " + filePath);
+    // Disk size of the store & average latency of reading a sample of its objects
+    private static String measureStore(List<ObjectId> ids) throws IOException {
+        int sampleSize = Math.min(ids.size(), 1000);
+        long startTime = System.nanoTime();
+        for(int i = 0; i < sampleSize; i++) {
+            storage.read(ids.get(i * ids.size() / Math.max(sampleSize, 1)));
         }
+        long elapsed = System.nanoTime() - startTime;
 
-        Blob blob = new Blob(fileData);
+        return String.format("%.1f KB on disk, %.1f us per object read",
+                storage.diskSize() / 1024.0, sampleSize == 0 ? 0 : elapsed / 1000.0 / sampleSize);
+    }
+
+    private static int parseCount(String option, String value) {
         try {
-            storage.store(blob);
-        } catch (IOException e) {
-            System.err.println("Unable to write blob file for: " + filePath.toString());
-            System.err.println(e);
-            System.exit(1);
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + option + ": " + value);
+            CommandExit.exit(1);
+            return 0;
         }
-        return blob.getId();
     }
 }
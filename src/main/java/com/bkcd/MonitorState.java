@@ -0,0 +1,105 @@
+package com.bkcd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What the last full look at the workspace found, as of a file system monitor token. Every tracked
+ * file not listed as dirty matched its index entry at that point & the untracked files were exactly
+ * those listed, so later commands only have to look at these paths & the ones the monitor reported.
+ *
+ * Stored as the "FSMN" index extension: the token & a null byte, then for every path a type byte,
+ * 'D' for dirty & 'U' for untracked, the path & a null byte.
+ */
+public class MonitorState {
+    public static final String SIGNATURE = "FSMN";
+
+    private final String token;
+    private final TreeSet<String> dirty = new TreeSet<>();
+    private final TreeSet<String> untracked = new TreeSet<>();
+
+    public MonitorState(String token, List<String> dirty, List<String> untracked) {
+        this.token = token;
+        this.dirty.addAll(dirty);
+        this.untracked.addAll(untracked);
+    }
+
+    // Null when the index has no monitor state
+    public static MonitorState parse(ByteBuffer data) {
+        if(data == null) return null;
+
+        int position = 0;
+        String token = null;
+        List<String> dirty = new ArrayList<>();
+        List<String> untracked = new ArrayList<>();
+        while(position < data.limit()) {
+            int end = position;
+            while(data.get(end) != 0) end++;
+
+            byte[] value = new byte[end - position];
+            data.get(position, value);
+            String text = new String(value, StandardCharsets.UTF_8);
+            if(token == null) {
+                token = text;
+            } else if(text.charAt(0) == 'D') {
+                dirty.add(text.substring(1));
+            } else {
+                untracked.add(text.substring(1));
+            }
+            position = end + 1;
+        }
+        return new MonitorState(token, dirty, untracked);
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public TreeSet<String> getDirty() {
+        return dirty;
+    }
+
+    public TreeSet<String> getUntracked() {
+        return untracked;
+    }
+
+    /**
+     * Keeps the state valid across an index update. Staged entries match their files as they were
+     * staged, later changes are reported by the monitor. Removed paths may still exist as files &
+     * are looked at again by the next command.
+     */
+    public void recordUpdate(Set<String> stagedPaths, Set<String> removedPaths) {
+        dirty.removeAll(stagedPaths);
+        untracked.removeAll(stagedPaths);
+        dirty.addAll(removedPaths);
+    }
+
+    // Extension bytes including signature & length
+    public byte[] toExtension() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(token.getBytes(StandardCharsets.UTF_8));
+        data.write(0);
+        writePaths(data, 'D', dirty);
+        writePaths(data, 'U', untracked);
+
+        ByteArrayOutputStream extension = new ByteArrayOutputStream(data.size() + 8);
+        extension.write(SIGNATURE.getBytes(StandardCharsets.US_ASCII));
+        extension.write(ByteBuffer.allocate(4).putInt(data.size()).array());
+        data.writeTo(extension);
+        return extension.toByteArray();
+    }
+
+    private static void writePaths(ByteArrayOutputStream data, char type, TreeSet<String> paths) throws IOException {
+        for(String path : paths) {
+            data.write(type);
+            data.write(path.getBytes(StandardCharsets.UTF_8));
+            data.write(0);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.bkcd;
+
+import com.bkcd.Objects.ObjectId;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caching read access to the object store. Objects are kept parsed, with their header split off,
+ * in a size bounded LRU so walks over history & trees don't inflate the same objects again.
+ * Objects larger than a quarter of the budget are handed out without being cached, a single
+ * large blob would otherwise push out every tree read so far.
+ */
+public class ObjectReader {
+    public record LoadedObject(String type, byte[] body) {}
+
+    private final ObjectStore storage;
+    private final long maxBytes;
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private final LinkedHashMap<ObjectId, LoadedObject> cache = new LinkedHashMap<>(256, 0.75f, true);
+
+    public ObjectReader(ObjectStore storage, long maxBytes) {
+        this.storage = storage;
+        this.maxBytes = maxBytes;
+    }
+
+    public LoadedObject open(ObjectId id) throws IOException {
+        synchronized (this) {
+            LoadedObject cached = cache.get(id);
+            if(cached != null) {
+                hits++;
+                Trace.count("reader.hits", 1);
+                return cached;
+            }
+            misses++;
+            Trace.count("reader.misses", 1);
+        }
+
+        // Inflating happens outside the lock, two threads missing the same id both load it
+        LoadedObject loaded = storage.load(id);
+        cache(id, loaded);
+        return loaded;
+    }
+
+    // Object content without its header
+    public byte[] body(ObjectId id) throws IOException {
+        return open(id).body();
+    }
+
+    private synchronized void cache(ObjectId id, LoadedObject loaded) {
+        long size = loaded.body().length;
+        if(size > maxBytes / 4) return;
+
+        LoadedObject previous = cache.put(id, loaded);
+        if(previous != null) currentBytes -= previous.body().length;
+        currentBytes += size;
+
+        var iterator = cache.entrySet().iterator();
+        while(currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<ObjectId, LoadedObject> eldest = iterator.next();
+            currentBytes -= eldest.getValue().body().length;
+            iterator.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    public synchronized long getCachedBytes() {
+        return currentBytes;
+    }
+}
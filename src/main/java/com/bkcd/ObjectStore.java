@@ -1,36 +1,715 @@
 package com.bkcd;
 
+import com.bkcd.Objects.Blob;
+import com.bkcd.Objects.ChunkManifest;
+import com.bkcd.Objects.Commit;
+import com.bkcd.Objects.Hashing;
 import com.bkcd.Objects.ObjectEntity;
+import com.bkcd.Objects.ObjectHeader;
+import com.bkcd.Objects.ObjectId;
+import com.bkcd.Objects.ObjectIdMap;
+import com.bkcd.Objects.Tree;
+import com.bkcd.Objects.TreeEntry;
+import com.bkcd.Pack.Codec;
+import com.bkcd.Pack.DeltaPacker;
+import com.bkcd.Pack.InflaterPool;
+import com.bkcd.Pack.PackFile;
+import com.bkcd.Pack.PackWriter;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.zip.DeflaterOutputStream;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 //
 public class ObjectStore {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final long READER_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Files of at least this size are stored as chunks & a manifest, see ChunkManifest.
+     * DELTA_CHUNK_THRESHOLD overrides it with a size in bytes, 0 stores every file as a plain blob.
+     */
+    private static final long CHUNKED_MIN_SIZE = 8L * 1024 * 1024;
+
+    // Files whose first bytes the codec can't make smaller, e.g. archives & media, are written uncompressed
+    private static final int CODEC_SAMPLE_SIZE = 64 * 1024;
+
+    // Largest body that fits in a byte array, larger blobs can only be read through openBody
+    private static final long MAX_BODY_SIZE = Integer.MAX_VALUE - 8;
+
+    // Names the object format of a repo, see Hashing. Repos without it use sha1.
+    public static final String OBJECT_FORMAT_FILE = "object-format";
+
     private final Path path;
+    private final Hashing.ObjectFormat objectFormat;
+    private volatile Codec repoCodec = null;
+    private volatile List<PackFile> packs = null;
+    private final ObjectReader reader;
 
     public ObjectStore(Path path){
         this.path = path;
+        this.objectFormat = readObjectFormat(path.getParent());
+        this.reader = new ObjectReader(this, READER_CACHE_BYTES);
+    }
+
+    // Format every id of this repo is hashed with, fixed when the repo was created
+    public Hashing.ObjectFormat objectFormat() {
+        return objectFormat;
+    }
+
+    // Shared caching reader, objects never change once written so its cache never goes stale
+    public ObjectReader reader() {
+        return reader;
+    }
+
+    // An object exists if it is either stored loose or is part of one of the packs
+    public boolean contains(ObjectId id) throws IOException {
+        if (Files.exists(objectPath(id))) return true;
+
+        for (PackFile pack : packs()) {
+            if (pack.contains(id)) return true;
+        }
+        return false;
+    }
+
+    // Returns the inflated object content, header included. Chunked blobs are put back together.
+    public byte[] read(ObjectId id) throws IOException {
+        Trace.Span span = Trace.span("store.read");
+        try {
+            byte[] content = readStored(id);
+            ObjectHeader header = ObjectHeader.parse(content, Math.min(content.length, ObjectHeader.MAX_LENGTH));
+            if (!header.type().equals(ChunkManifest.TYPE)) return content;
+
+            ChunkManifest manifest = ChunkManifest.parse(Arrays.copyOfRange(content, header.length(), content.length));
+            byte[] blobHeader = ("blob " + manifest.blobSize() + "\0").getBytes(StandardCharsets.US_ASCII);
+            byte[] body = joinChunks(manifest);
+            byte[] blob = Arrays.copyOf(blobHeader, blobHeader.length + body.length);
+            System.arraycopy(body, 0, blob, blobHeader.length, body.length);
+            return blob;
+        } finally {
+            span.close();
+        }
+    }
+
+    // Content as it is stored, a chunked blob is returned as its manifest
+    private byte[] readStored(ObjectId id) throws IOException {
+        Path objectPath = objectPath(id);
+        if (Files.exists(objectPath)) {
+            try (InputStream in = Codec.decompressing(new BufferedInputStream(Files.newInputStream(objectPath)))) {
+                return in.readAllBytes();
+            }
+        }
+
+        byte[] content = readPacked(id);
+        if (content != null) return content;
+        throw new IOException("Object not found: " + id);
+    }
+
+    /**
+     * Reads & parses the object without caching it. Loose objects are inflated straight into a
+     * body array of the size given by the header, packed objects are read with their header.
+     */
+    ObjectReader.LoadedObject load(ObjectId id) throws IOException {
+        Trace.Span span = Trace.span("store.load");
+        try {
+            ObjectReader.LoadedObject loaded = loadStored(id);
+            if (!loaded.type().equals(ChunkManifest.TYPE)) return loaded;
+            return new ObjectReader.LoadedObject("blob", joinChunks(ChunkManifest.parse(loaded.body())));
+        } finally {
+            span.close();
+        }
+    }
+
+    private ObjectReader.LoadedObject loadStored(ObjectId id) throws IOException {
+        Path objectPath = objectPath(id);
+        if (Files.exists(objectPath)) {
+            byte[] stored = Files.readAllBytes(objectPath);
+            if (stored.length > 0 && Codec.isDeflate(stored[0])) return inflateLoose(stored, objectPath);
+            return splitHeader(Codec.decompress(ByteBuffer.wrap(stored)));
+        }
+
+        byte[] content = readPacked(id);
+        if (content != null) return splitHeader(content);
+        throw new IOException("Object not found: " + id);
+    }
+
+    private static ObjectReader.LoadedObject splitHeader(byte[] content) throws IOException {
+        ObjectHeader header = ObjectHeader.parse(content, Math.min(content.length, ObjectHeader.MAX_LENGTH));
+        return new ObjectReader.LoadedObject(header.type(), Arrays.copyOfRange(content, header.length(), content.length));
+    }
+
+    // Bodies of all chunks listed by the manifest, in order
+    private byte[] joinChunks(ChunkManifest manifest) throws IOException {
+        checkBodySize(manifest.blobSize(), "chunked blob");
+        byte[] body = new byte[(int) manifest.blobSize()];
+        int position = 0;
+        for (ChunkManifest.Chunk chunk : manifest.chunks()) {
+            byte[] chunkBody = loadStored(chunk.id()).body();
+            if (chunkBody.length != chunk.size()) throw new IOException("Corrupt chunk: " + chunk.id());
+            System.arraycopy(chunkBody, 0, body, position, chunkBody.length);
+            position += chunkBody.length;
+        }
+        return body;
+    }
+
+    /**
+     * Stream over the object content without its header. Loose objects are inflated as the stream
+     * is read, so a large blob never has to fit in memory. Packed objects are reconstructed first.
+     * A chunked blob is streamed chunk by chunk, each one only opened once the previous is used up.
+     */
+    public InputStream openBody(ObjectId id) throws IOException {
+        Path objectPath = objectPath(id);
+        if (Files.exists(objectPath)) {
+            InputStream in = Codec.decompressing(new BufferedInputStream(Files.newInputStream(objectPath)));
+
+            // The header is read byte by byte so the stream is left positioned at the first body byte
+            try {
+                byte[] header = new byte[ObjectHeader.MAX_LENGTH];
+                int length = 0;
+                do {
+                    int next = in.read();
+                    if (next < 0) break;
+                    header[length++] = (byte) next;
+                } while (header[length - 1] != 0 && length < header.length);
+                if (!ObjectHeader.parse(header, length).type().equals(ChunkManifest.TYPE)) return in;
+
+                try (in) {
+                    return new ChunkStream(ChunkManifest.parse(in.readAllBytes()));
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        byte[] content = readPacked(id);
+        if (content != null) {
+            ObjectHeader header = ObjectHeader.parse(content, Math.min(content.length, ObjectHeader.MAX_LENGTH));
+            if (header.type().equals(ChunkManifest.TYPE)) {
+                return new ChunkStream(ChunkManifest.parse(Arrays.copyOfRange(content, header.length(), content.length)));
+            }
+            return new ByteArrayInputStream(content, header.length(), content.length - header.length());
+        }
+        throw new IOException("Object not found: " + id);
+    }
+
+    // Concatenation of the chunk bodies of a manifest
+    private class ChunkStream extends InputStream {
+        private final Iterator<ChunkManifest.Chunk> chunks;
+        private InputStream current = InputStream.nullInputStream();
+
+        ChunkStream(ChunkManifest manifest) {
+            this.chunks = manifest.chunks().iterator();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return (read(single, 0, 1) < 0) ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            while (true) {
+                int read = current.read(bytes, offset, length);
+                if (read >= 0) return read;
+                if (!chunks.hasNext()) return -1;
+
+                current.close();
+                current = openBody(chunks.next().id());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            current.close();
+        }
+    }
+
+    /**
+     * Content of a packed object, header included, or null. Another process may have repacked since
+     * the pack list was loaded, so on a miss the list is loaded again once before giving up.
+     */
+    private byte[] readPacked(ObjectId id) throws IOException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            for (PackFile pack : packs()) {
+                byte[] content = pack.read(id);
+                if (content != null) return content;
+            }
+            packs = null;
+        }
+        return null;
+    }
+
+    // Deflated objects are the common case, they are inflated straight into a body of the right size
+    private ObjectReader.LoadedObject inflateLoose(byte[] stored, Path objectPath) throws IOException {
+        Inflater inflater = InflaterPool.acquire();
+        try {
+            inflater.setInput(stored);
+
+            byte[] headerBytes = new byte[ObjectHeader.MAX_LENGTH];
+            int headerRead = inflate(inflater, headerBytes, 0, headerBytes.length);
+            ObjectHeader header = ObjectHeader.parse(headerBytes, headerRead);
+
+            checkBodySize(header.size(), objectPath.toString());
+            byte[] body = new byte[(int) header.size()];
+            int position = headerRead - header.length();
+            System.arraycopy(headerBytes, header.length(), body, 0, position);
+            position += inflate(inflater, body, position, body.length - position);
+
+            if (position != body.length || !inflater.finished()) {
+                throw new IOException("Corrupt object: " + objectPath);
+            }
+            return new ObjectReader.LoadedObject(header.type(), body);
+        } finally {
+            InflaterPool.release(inflater);
+        }
+    }
+
+    private static void checkBodySize(long size, String object) throws IOException {
+        if(size > MAX_BODY_SIZE) {
+            throw new IOException("Object too large to load into memory (" + size + " bytes), it has to be streamed: " + object);
+        }
+    }
+
+    // Inflates until the range is full or the stream ends, returns the number of bytes written
+    private static int inflate(Inflater inflater, byte[] buffer, int offset, int length) throws IOException {
+        int written = 0;
+        try {
+            while (written < length && !inflater.finished()) {
+                int count = inflater.inflate(buffer, offset + written, length - written);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated object");
+                }
+                written += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt object", e);
+        }
+        return written;
     }
 
     public void store(ObjectEntity obj) throws IOException {
-        byte[] content = obj.getContent();
-        String id = obj.getId();
+        Trace.Span span = Trace.span("store.write");
+        try {
+            byte[] content = obj.getContent(objectFormat);
+            writeLoose(obj.getId(), content);
+        } finally {
+            span.close();
+        }
+    }
 
-        Path objectPath = Path.of(path.toString(), id.substring(0,2), id.substring(2));
+    // Returns false without writing anything if an object with this id exists already
+    private boolean writeLoose(ObjectId id, byte[] content) throws IOException {
+        Path objectPath = objectPath(id);
 
         //Prevent overwrite if same object already exists
-        if (Files.exists(objectPath)) return;
+        if (contains(id)) return false;
+
+        Files.createDirectories(path);
+
+        /**
+         * Parallel staging or another process can store the same object at once, so the object is
+         * written to a temp file first & renamed into place. Readers never see a partial object &
+         * when two writers race the second rename replaces the object with identical content.
+         */
+        Path tempPath = Files.createTempFile(path, "tmp_obj_", "");
+        try {
+            Files.write(tempPath, codec().compress(content));
+            Trace.count("store.bytes_compressed", content.length);
+            moveIntoPlace(tempPath, objectPath);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+        return true;
+    }
+
+    /**
+     * Stores the file as a blob without ever holding its content in memory. The header & file bytes
+     * are hashed as they are compressed into a temp file, since the id is only known once the whole
+     * file has been read the temp file is renamed to its object path at the end.
+     * Size has to be the one reported by stat, the header is written before any content is read.
+     * A file is only compressed if the codec makes its first CODEC_SAMPLE_SIZE bytes smaller.
+     */
+    public ObjectId storeFile(Path filePath, long size) throws IOException {
+        long chunkedMinSize = chunkedMinSize();
+        if (chunkedMinSize > 0 && size >= chunkedMinSize) return storeChunked(filePath, size);
+
+        Trace.Span span = Trace.span("store.write_file");
+        try {
+            Files.createDirectories(path);
+            Path tempPath = Files.createTempFile(path, "tmp_obj_", "");
+
+            try {
+                MessageDigest digest = Hashing.digest(objectFormat);
+                long copied;
+
+                try (InputStream in = Files.newInputStream(filePath)) {
+                    byte[] sample = in.readNBytes(CODEC_SAMPLE_SIZE);
+                    Codec codec = codec();
+                    if (sample.length == CODEC_SAMPLE_SIZE && !codec.compresses(sample)) codec = Codec.STORE;
 
-        Files.createDirectories(objectPath.getParent());
+                    try (OutputStream out = new DigestOutputStream(
+                            codec.compressing(new BufferedOutputStream(new FileOutputStream(tempPath.toFile()), STREAM_BUFFER_SIZE)),
+                            digest)) {
+                        out.write(("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+                        out.write(sample);
+                        copied = sample.length + in.transferTo(out);
+                    }
+                }
+
+                if (copied != size) {
+                    throw new IOException("File changed while being stored: " + filePath);
+                }
+                Trace.count("hash.bytes", size);
+                Trace.count("store.bytes_compressed", size);
+
+                ObjectId id = Hashing.id(digest);
+                Path objectPath = objectPath(id);
+
+                if (!contains(id)) {
+                    moveIntoPlace(tempPath, objectPath);
+                }
+                return id;
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Stores a large file as content defined chunks & a manifest under the id the file has as a blob.
+     * Only chunks not in the store yet are compressed & written, so a new version of a large file
+     * that differs in a few places costs a few chunks & a new manifest.
+     */
+    private ObjectId storeChunked(Path filePath, long size) throws IOException {
+        Trace.Span span = Trace.span("store.write_chunked");
+        try {
+            // Chunks are hashed as blobs of their own while the file is hashed, the digest can't be the thread's
+            MessageDigest digest = Hashing.newDigest(objectFormat);
+            digest.update(("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+
+            List<ChunkManifest.Chunk> chunks = new ArrayList<>();
+            long copied = 0;
+            try (InputStream in = Files.newInputStream(filePath)) {
+                Chunker chunker = new Chunker(in);
+                for (byte[] data = chunker.next(); data != null; data = chunker.next()) {
+                    digest.update(data);
+                    Blob chunk = new Blob(data);
+                    byte[] content = chunk.getContent(objectFormat);
+                    Trace.count(writeLoose(chunk.getId(), content) ? "store.chunks_written" : "store.chunks_reused", 1);
+                    chunks.add(new ChunkManifest.Chunk(chunk.getId(), data.length));
+                    copied += data.length;
+                }
+            }
+
+            if (copied != size) {
+                throw new IOException("File changed while being stored: " + filePath);
+            }
+            Trace.count("hash.bytes", size);
+
+            ObjectId id = Hashing.id(digest);
+            writeLoose(id, new ChunkManifest(size, chunks).getContent());
+            return id;
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Codec new objects are compressed with. Set per repo by the name of a codec in ".git/codec",
+     * see Codec.parse(), which is read once per store. DELTA_CODEC overrides it. Deflate when neither is set or valid.
+     */
+    public Codec codec() {
+        String setting = Environment.get("DELTA_CODEC");
+        Codec codec = (setting == null) ? null : Codec.parse(setting);
+        if (codec != null) return codec;
+
+        if (repoCodec == null) {
+            Path settingPath = path.resolveSibling("codec");
+            try {
+                codec = Files.exists(settingPath) ? Codec.parse(Files.readString(settingPath)) : null;
+            } catch (IOException e) {
+                codec = null;
+            }
+            repoCodec = (codec == null) ? Codec.DEFLATE : codec;
+        }
+        return repoCodec;
+    }
+
+    /**
+     * Object format of the repo with the given .git directory, named in its setting file. It is
+     * written once by init, every id in the repo depends on it, so a format this version doesn't
+     * know can't fall back to sha1.
+     */
+    static Hashing.ObjectFormat readObjectFormat(Path gitDirectory) {
+        Path settingPath = gitDirectory.resolve(OBJECT_FORMAT_FILE);
+        String setting;
+        try {
+            setting = Files.exists(settingPath) ? Files.readString(settingPath) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (setting == null) return Hashing.ObjectFormat.SHA1;
+
+        Hashing.ObjectFormat format = Hashing.ObjectFormat.parse(setting);
+        if (format == null) throw new IllegalStateException("Unsupported object format: " + setting.trim());
+        return format;
+    }
+
+    private static long chunkedMinSize() {
+        String threshold = Environment.get("DELTA_CHUNK_THRESHOLD");
+        if (threshold == null) return CHUNKED_MIN_SIZE;
+        try {
+            return Long.parseLong(threshold.trim());
+        } catch (NumberFormatException e) {
+            return CHUNKED_MIN_SIZE;
+        }
+    }
+
+    /**
+     * Moves loose objects into a new pack & deletes them afterwards. Compressed object files are
+     * copied into the pack as they are. Returns the number of objects written.
+     */
+    public int repack() throws IOException {
+        Trace.Span span = Trace.span("store.repack");
+        try {
+            List<Path> looseObjects = looseObjects();
+            if (looseObjects.isEmpty()) return 0;
+
+            Path packDirectory = packDirectory();
+            int written = 0;
+            PackWriter writer = new PackWriter(packDirectory, codec());
+            try {
+                for (Path objectPath : looseObjects) {
+                    if (writer.size() > PackWriter.MAX_PACK_SIZE) {
+                        written += writer.count();
+                        writer.finish();
+                        writer = new PackWriter(packDirectory, codec());
+                    }
+                    try (InputStream in = Files.newInputStream(objectPath)) {
+                        writer.addCompressed(looseId(objectPath), in, Files.size(objectPath));
+                    }
+                }
+                written += writer.count();
+                writer.finish();
+            } finally {
+                writer.close();
+            }
+
+            //Loose objects are only removed once the new pack is in place
+            deleteLooseObjects(looseObjects);
+            packs = null;
+            return written;
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Rewrites every loose & packed object into fresh packs using delta compression, old packs &
+     * loose objects are deleted afterwards. Path hints map object ids to a path they were seen at,
+     * objects of files with the same name are tried as delta bases for each other first.
+     */
+    public DeltaPacker gc(ObjectIdMap<String> pathHints) throws IOException {
+        Trace.Span span = Trace.span("store.gc");
+        try {
+            List<Path> looseObjects = looseObjects();
+            List<PackFile> oldPacks = packs();
+
+            List<DeltaPacker.Candidate> candidates = new ArrayList<>();
+            for (ObjectId id : listIds()) {
+                ObjectHeader header = readHeader(id);
+                candidates.add(new DeltaPacker.Candidate(id, header.type(), header.size(), pathHints.get(id)));
+            }
+
+            //Chunked blobs are packed as their manifests, the chunks are packed as blobs of their own
+            DeltaPacker packer = new DeltaPacker(packDirectory(), codec(), this::readStored);
+            packer.pack(candidates);
+
+            deleteLooseObjects(looseObjects);
+            for (PackFile pack : oldPacks) {
+                Files.deleteIfExists(pack.getIndexPath());
+                Files.deleteIfExists(pack.getPackPath());
+            }
+            packs = null;
+            return packer;
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Walks the history of the given commits & records the first path each blob & tree was seen at.
+     * Used as a hint for picking delta bases, since objects have no notion of their path.
+     */
+    public ObjectIdMap<String> collectPathHints(List<String> commitIds) throws IOException {
+        ObjectIdMap<String> hints = new ObjectIdMap<>();
+        ObjectIdMap<Boolean> visitedCommits = new ObjectIdMap<>();
+
+        for (String commitId : commitIds) {
+            ObjectId current = ObjectId.isHex(commitId) ? ObjectId.fromHex(commitId) : null;
+            while (current != null && contains(current) && visitedCommits.putIfAbsent(current, true) == null) {
+                byte[] commit = reader.body(current);
+                ObjectId treeId = Commit.parseTreeId(commit);
+                if (treeId != null) collectTreeHints(treeId, "", hints);
+                current = Commit.parseParentId(commit);
+            }
+        }
+        return hints;
+    }
+
+    private void collectTreeHints(ObjectId treeId, String prefix, ObjectIdMap<String> hints) throws IOException {
+        if (hints.putIfAbsent(treeId, prefix) != null) return;
+
+        for (TreeEntry entry : Tree.parseEntries(reader.body(treeId))) {
+            String childPath = prefix + entry.name();
+            if (entry.isTree()) {
+                collectTreeHints(entry.id(), childPath + "/", hints);
+            } else {
+                hints.putIfAbsent(entry.id(), childPath);
+            }
+        }
+    }
+
+    // Ids of all objects in the store, loose & packed
+    public List<ObjectId> listIds() throws IOException {
+        LinkedHashSet<ObjectId> ids = new LinkedHashSet<>();
+        for (Path objectPath : looseObjects()) {
+            ids.add(looseId(objectPath));
+        }
+        for (PackFile pack : packs()) {
+            ids.addAll(pack.ids());
+        }
+        return new ArrayList<>(ids);
+    }
+
+    // Total bytes used on disk by loose objects & packs
+    public long diskSize() throws IOException {
+        if (!Files.isDirectory(path)) return 0;
+
+        try (Stream<Path> files = Files.walk(path)) {
+            long size = 0;
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                size += Files.size(file);
+            }
+            return size;
+        }
+    }
+
+    // Type & size recorded in the object header, loose objects are only inflated as far as the header
+    private ObjectHeader readHeader(ObjectId id) throws IOException {
+        Path objectPath = objectPath(id);
+        if (Files.exists(objectPath)) {
+            try (InputStream in = Codec.decompressing(new BufferedInputStream(Files.newInputStream(objectPath)))) {
+                byte[] header = in.readNBytes(ObjectHeader.MAX_LENGTH);
+                return ObjectHeader.parse(header, header.length);
+            }
+        }
+
+        byte[] content = readStored(id);
+        return ObjectHeader.parse(content, Math.min(content.length, ObjectHeader.MAX_LENGTH));
+    }
+
+    private ObjectId looseId(Path objectPath) {
+        return ObjectId.fromHex(objectPath.getParent().getFileName().toString() + objectPath.getFileName());
+    }
+
+    private void deleteLooseObjects(List<Path> looseObjects) throws IOException {
+        for (Path objectPath : looseObjects) {
+            Files.deleteIfExists(objectPath);
+            deleteIfEmpty(objectPath.getParent());
+        }
+    }
+
+    // Packs written next to the store, e.g. by BatchImporter, are only seen once the list is loaded again
+    void reloadPacks() {
+        packs = null;
+    }
+
+    Path packDirectory() {
+        return path.resolve("pack");
+    }
+
+    private List<PackFile> packs() throws IOException {
+        List<PackFile> loaded = packs;
+        if (loaded != null) return loaded;
+
+        synchronized (this) {
+            if (packs == null) {
+                List<PackFile> found = new ArrayList<>();
+                Path packDirectory = packDirectory();
+                if (Files.isDirectory(packDirectory)) {
+                    try (Stream<Path> files = Files.list(packDirectory)) {
+                        for (Path indexPath : files.filter(file -> file.getFileName().toString().matches("pack-[0-9a-f]+\\.idx")).toList()) {
+                            found.add(new PackFile(indexPath));
+                        }
+                    }
+                }
+                packs = found;
+            }
+            return packs;
+        }
+    }
+
+    private List<Path> looseObjects() throws IOException {
+        if (!Files.isDirectory(path)) return List.of();
+
+        try (Stream<Path> files = Files.walk(path, 2)) {
+            return files.filter(file -> file.getNameCount() == path.getNameCount() + 2)
+                    .filter(file -> file.getParent().getFileName().toString().matches("[0-9a-f]{2}"))
+                    .filter(file -> !file.getFileName().toString().startsWith("tmp_"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static void deleteIfEmpty(Path directory) throws IOException {
+        try (Stream<Path> content = Files.list(directory)) {
+            if (content.findAny().isPresent()) return;
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    // gc removes fan-out directories it emptied, one can vanish between creating it & moving into it
+    private static void moveIntoPlace(Path tempPath, Path objectPath) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Files.createDirectories(objectPath.getParent());
+            try {
+                Files.move(tempPath, objectPath, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            } catch (NoSuchFileException e) {
+                if (attempt == 3) throw e;
+            }
+        }
+    }
 
-        OutputStream compressionStream = new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(objectPath.toFile())));
-        compressionStream.write(content);
-        compressionStream.close();
+    private Path objectPath(ObjectId objectId) {
+        String id = objectId.toHex();
+        return Path.of(path.toString(), id.substring(0,2), id.substring(2));
     }
 }
@@ -1,41 +1,43 @@
 package com.bkcd.Objects;
 
-import org.apache.commons.codec.digest.DigestUtils;
-
 import java.nio.charset.StandardCharsets;
 
 public class Blob implements ObjectEntity{
-    private String data = null;
-    private String id = null;
+    private byte[] data = null;
+    private ObjectId id = null;
 
     private final String MODE;
     private final String TYPE = "blob";
 
-    public Blob(String fileData) {
+    // File bytes are kept as they are, they are never transcoded to a charset
+    public Blob(byte[] fileData) {
         this.data = fileData;
         this.MODE = null;
     }
 
     //This constructor is used during tree construction
-    public Blob(String blobId, String mode) {
-        this.id = new String(blobId);
+    public Blob(ObjectId blobId, String mode) {
+        this.id = blobId;
         this.MODE = mode;
     }
 
-    public byte[] getContent() {
-        byte[] content = ("blob " + this.data.getBytes(StandardCharsets.US_ASCII).length + "\0" + this.data).getBytes(StandardCharsets.US_ASCII);
+    public byte[] getContent(Hashing.ObjectFormat format) {
+        byte[] header = ("blob " + this.data.length + "\0").getBytes(StandardCharsets.US_ASCII);
+        byte[] content = new byte[header.length + this.data.length];
+        System.arraycopy(header, 0, content, 0, header.length);
+        System.arraycopy(this.data, 0, content, header.length, this.data.length);
 
         if(this.id == null) {
-            setId(content);
+            setId(format, content);
         }
         return content;
     }
 
-    private void setId(byte[] content) {
-        this.id = DigestUtils.sha1Hex(content);
+    private void setId(Hashing.ObjectFormat format, byte[] content) {
+        this.id = Hashing.hash(format, content);
     }
 
-    public String getId() {
+    public ObjectId getId() {
         return this.id;
     }
 
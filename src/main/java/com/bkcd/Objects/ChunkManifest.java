@@ -0,0 +1,55 @@
+package com.bkcd.Objects;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stored form of a large blob that was split into chunks. The manifest is kept under the id of the
+ * blob it stands for, so trees & the index refer to large files exactly like to any other blob &
+ * only the store knows the content has to be put together from its chunks. Each chunk is a blob
+ * of its own, chunks shared between versions of a file are stored once.
+ *
+ * Content: "chunked <length>\0" | blob size (8 bytes) | (chunk id (20 bytes) | chunk size (4 bytes))...
+ */
+public record ChunkManifest(long blobSize, List<Chunk> chunks) {
+    public static final String TYPE = "chunked";
+    private static final int CHUNK_ENTRY_LENGTH = ObjectId.LENGTH + 4;
+
+    public record Chunk(ObjectId id, int size) {}
+
+    public static ChunkManifest parse(byte[] body) throws IOException {
+        if(body.length < 8 || (body.length - 8) % CHUNK_ENTRY_LENGTH != 0) {
+            throw new IOException("Corrupt chunk manifest");
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(body);
+        long blobSize = data.getLong(0);
+        List<Chunk> chunks = new ArrayList<>((body.length - 8) / CHUNK_ENTRY_LENGTH);
+        long total = 0;
+        for(int position = 8; position < body.length; position += CHUNK_ENTRY_LENGTH) {
+            Chunk chunk = new Chunk(ObjectId.fromBytes(body, position), data.getInt(position + ObjectId.LENGTH));
+            total += chunk.size();
+            chunks.add(chunk);
+        }
+        if(total != blobSize) throw new IOException("Corrupt chunk manifest");
+        return new ChunkManifest(blobSize, chunks);
+    }
+
+    // Manifest content including its header, ready to be stored
+    public byte[] getContent() {
+        int bodyLength = 8 + chunks.size() * CHUNK_ENTRY_LENGTH;
+        byte[] header = (TYPE + " " + bodyLength + "\0").getBytes(StandardCharsets.US_ASCII);
+
+        ByteBuffer content = ByteBuffer.allocate(header.length + bodyLength);
+        content.put(header);
+        content.putLong(blobSize);
+        for(Chunk chunk : chunks) {
+            content.put(chunk.id().toBytes());
+            content.putInt(chunk.size());
+        }
+        return content.array();
+    }
+}
@@ -1,25 +1,47 @@
 package com.bkcd.Objects;
 
-import org.apache.commons.codec.digest.DigestUtils;
+import com.bkcd.Environment;
 
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
 
 public class Commit implements ObjectEntity {
-    private String id = null;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("E MMM d HH:mm:ss u XXX", Locale.ROOT);
+
+    private ObjectId id = null;
     private final String message;
-    private final String treeId;
+    private final ObjectId treeId;
     private final String parentId;
     private final String type = "commit";
+    private final ZonedDateTime time;
+
+    public Commit(String parentId, ObjectId treeId, String message) {
+        this(parentId, treeId, message, ZonedDateTime.now().withNano(0));
+    }
 
-    public Commit(String parentId, String treeId, String message) {
+    // Commit made at the given time in seconds since the epoch, e.g. one taken over from another history
+    public Commit(String parentId, ObjectId treeId, String message, long time) {
+        this(parentId, treeId, message, Instant.ofEpochSecond(time).atZone(ZoneId.systemDefault()));
+    }
+
+    private Commit(String parentId, ObjectId treeId, String message, ZonedDateTime time) {
         this.message = message;
         this.treeId = treeId;
         this.parentId = parentId;
+        this.time = time;
     }
 
-    public byte[] getContent() {
+    // Commit time in seconds since the epoch, the same instant recorded in the Date line
+    public long getTime() {
+        return this.time.toEpochSecond();
+    }
+
+    public byte[] getContent(Hashing.ObjectFormat format) {
         String parentInfo = (parentId == null) ? "" : ("parent " + parentId + "\n");
         String info = ("tree " + this.treeId) + "\n"
                 + parentInfo
@@ -27,12 +49,12 @@ public class Commit implements ObjectEntity {
                 + message;
         byte[] content = ("commit " + info.getBytes(StandardCharsets.US_ASCII).length + "\0" + info).getBytes(StandardCharsets.US_ASCII);
         if(this.id == null) {
-            setId(content);
+            setId(format, content);
         }
         return content;
     }
 
-    public String getId() {
+    public ObjectId getId() {
         return this.id;
     }
 
@@ -44,16 +66,58 @@ public class Commit implements ObjectEntity {
         return null;
     }
 
+    // Tree id recorded in the body of a stored commit
+    public static ObjectId parseTreeId(byte[] rawCommit) {
+        String value = parseField(rawCommit, "tree ");
+        return (value == null) ? null : ObjectId.fromHex(value);
+    }
+
+    // Parent id recorded in a stored commit, null for the root commit
+    public static ObjectId parseParentId(byte[] rawCommit) {
+        String value = parseField(rawCommit, "parent ");
+        //The first commit records "root-commit" as its parent, which isn't an object id
+        return ObjectId.isHex(value) ? ObjectId.fromHex(value) : null;
+    }
+
+    // Formats a commit time the way it is recorded in the Date line, in the local time zone
+    public static String formatTime(long epochSeconds) {
+        return Instant.ofEpochSecond(epochSeconds).atZone(ZoneId.systemDefault()).format(DATE_FORMAT);
+    }
+
+    // Commit time in seconds since the epoch, 0 if the Date line can't be parsed
+    public static long parseTime(byte[] rawCommit) {
+        String value = parseField(rawCommit, "Date:   ");
+        try {
+            return (value == null) ? 0 : ZonedDateTime.parse(value, DATE_FORMAT).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    // The message follows the Date line, which is the last line of the commit headers
+    public static String parseMessage(byte[] rawCommit) {
+        String content = new String(rawCommit, StandardCharsets.US_ASCII);
+        int dateStart = content.indexOf("\nDate:   ");
+        int messageStart = (dateStart < 0) ? -1 : content.indexOf('\n', dateStart + 1);
+        return (messageStart < 0) ? "" : content.substring(messageStart + 1);
+    }
+
+    private static String parseField(byte[] rawCommit, String prefix) {
+        for(String line : new String(rawCommit, StandardCharsets.US_ASCII).split("\n")) {
+            if(line.startsWith(prefix)) return line.substring(prefix.length());
+            if(line.isEmpty() || line.startsWith("Date:")) break;
+        }
+        return null;
+    }
+
     private String authorInfo() {
-        String name = System.getenv("DELTA_AUTHOR_NAME");
-        String email = System.getenv("DELTA_AUTHOR_EMAIL");
+        String name = Environment.get("DELTA_AUTHOR_NAME");
+        String email = Environment.get("DELTA_AUTHOR_EMAIL");
 
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("E MMM d hh:mm:ss u XXX");
-        String time = ZonedDateTime.now().format(formatter);
-        return "Author: " + name + " <" + email + ">\n" + "Date:   " + time;
+        return "Author: " + name + " <" + email + ">\n" + "Date:   " + time.format(DATE_FORMAT);
     }
 
-    private void setId(byte[] content) {
-        this.id = DigestUtils.sha1Hex(content);
+    private void setId(Hashing.ObjectFormat format, byte[] content) {
+        this.id = Hashing.hash(format, content);
     }
 }
@@ -0,0 +1,180 @@
+package com.bkcd.Objects;
+
+import com.bkcd.Trace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashing of object ids & file checksums. Every thread keeps its own digests & buffers, so hashing
+ * an object allocates nothing but its id & threads staging in parallel never contend on a digest.
+ *
+ * Ids are hashed with the object format of the repo, which its ObjectStore knows. Threads keep a
+ * digest per format, so stores of repos with different formats can be used side by side. The
+ * sha256 format keeps the first 20 bytes of the SHA-256 hash, so ids stay as wide as they are in
+ * every index, tree & pack. Checksums at the end of index & pack files are always SHA-1, they only
+ * guard against corruption & don't depend on the repo.
+ */
+public final class Hashing {
+    public enum ObjectFormat {
+        SHA1("sha1", "SHA-1"),
+        SHA256("sha256", "SHA-256");
+
+        private final String name;
+        private final String algorithm;
+
+        ObjectFormat(String name, String algorithm) {
+            this.name = name;
+            this.algorithm = algorithm;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Format for the name written in settings, null for an unknown one
+        public static ObjectFormat parse(String setting) {
+            for(ObjectFormat format : values()) {
+                if(format.name.equals(setting.trim())) return format;
+            }
+            return null;
+        }
+    }
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    private static final MessageDigest SHA1_PROTOTYPE = newInstance(ObjectFormat.SHA1);
+
+    // Digests are reset before every use, a hash that failed halfway can't leak into the next one
+    private static final class ThreadState {
+        final MessageDigest sha1 = newInstance(ObjectFormat.SHA1);
+        MessageDigest sha256 = null;
+        final byte[] hash = new byte[32];
+        final ByteBuffer fileBuffer = ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+
+        MessageDigest digest(ObjectFormat format) {
+            if(format == ObjectFormat.SHA1) return sha1;
+            if(sha256 == null) sha256 = newInstance(ObjectFormat.SHA256);
+            return sha256;
+        }
+    }
+
+    private static final ThreadLocal<ThreadState> STATE = ThreadLocal.withInitial(ThreadState::new);
+
+    private Hashing() {}
+
+    // Id of a whole object, header included
+    public static ObjectId hash(ObjectFormat format, byte[] content) {
+        Trace.count("hash.bytes", content.length);
+        ThreadState state = STATE.get();
+        MessageDigest digest = state.digest(format);
+        digest.reset();
+        digest.update(content);
+        return finish(digest, state.hash);
+    }
+
+    // Id of the remaining bytes of the buffer, which are consumed
+    public static ObjectId hash(ObjectFormat format, ByteBuffer content) {
+        Trace.count("hash.bytes", content.remaining());
+        ThreadState state = STATE.get();
+        MessageDigest digest = state.digest(format);
+        digest.reset();
+        digest.update(content);
+        return finish(digest, state.hash);
+    }
+
+    /**
+     * The calling thread's digest for the object format, reset. For hashing content streamed in
+     * pieces, which has to be finished with id() before anything else on the thread is hashed.
+     */
+    public static MessageDigest digest(ObjectFormat format) {
+        MessageDigest digest = STATE.get().digest(format);
+        digest.reset();
+        return digest;
+    }
+
+    // A digest of its own for the object format, for hashing that spans other hashing
+    public static MessageDigest newDigest(ObjectFormat format) {
+        return newInstance(format);
+    }
+
+    // Id of everything fed into the digest, which is reset for its next use
+    public static ObjectId id(MessageDigest digest) {
+        return finish(digest, STATE.get().hash);
+    }
+
+    /**
+     * Id the file would get as a blob, read through a channel into the thread's direct buffer so
+     * the content is never copied onto the heap. Size has to be the one reported by stat, the header
+     * is hashed before any content is read.
+     */
+    public static ObjectId hashFile(ObjectFormat format, Path filePath, long size) throws IOException {
+        Trace.Span span = Trace.span("hash.file");
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            ThreadState state = STATE.get();
+            MessageDigest digest = state.digest(format);
+            digest.reset();
+            digest.update(("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+
+            ByteBuffer buffer = state.fileBuffer;
+            long hashed = 0;
+            buffer.clear();
+            while(channel.read(buffer) >= 0) {
+                buffer.flip();
+                hashed += buffer.remaining();
+                digest.update(buffer);
+                buffer.clear();
+            }
+
+            if(hashed != size) {
+                throw new IOException("File changed while being hashed: " + filePath);
+            }
+            Trace.count("hash.bytes", size);
+            return finish(digest, state.hash);
+        } finally {
+            span.close();
+        }
+    }
+
+    // A new SHA-1 digest for the checksum of a file written in one go
+    public static MessageDigest newChecksum() {
+        try {
+            return (MessageDigest) SHA1_PROTOTYPE.clone();
+        } catch (CloneNotSupportedException e) {
+            return newInstance(ObjectFormat.SHA1);
+        }
+    }
+
+    // SHA-1 checksum of the remaining bytes of the buffer, which are consumed
+    public static byte[] checksum(ByteBuffer content) {
+        MessageDigest digest = STATE.get().sha1;
+        digest.reset();
+        digest.update(content);
+        return digest.digest();
+    }
+
+    // The hash is written into the thread's buffer rather than a new array, only the id is allocated
+    private static ObjectId finish(MessageDigest digest, byte[] hash) {
+        try {
+            digest.digest(hash, 0, digest.getDigestLength());
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return ObjectId.fromBytes(hash);
+    }
+
+    private static MessageDigest newInstance(ObjectFormat format) {
+        try {
+            return MessageDigest.getInstance(format.algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -3,13 +3,14 @@ package com.bkcd.Objects;
 import java.io.IOException;
 
 public interface ObjectEntity {
-    byte[] getContent() throws IOException;
+    // Content with its header, the id is hashed from it with the repo's object format
+    byte[] getContent(Hashing.ObjectFormat format) throws IOException;
 
     /**
      *   Object Id is calculated lazily during the storing process.
-     *   Updated Id will be available only after getContent() method has been called
+     *   Updated Id will be available only after getContent(format) method has been called
      */
-    String getId();
+    ObjectId getId();
     String getType();
     //Mode only makes sense for trees & blobs since they represent entities in our repo
     String getMode();
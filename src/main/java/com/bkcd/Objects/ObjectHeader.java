@@ -0,0 +1,45 @@
+package com.bkcd.Objects;
+
+import java.io.IOException;
+
+/**
+ * The "type size\0" header every object starts with. Parsed in a single pass over the raw bytes,
+ * the type is matched against the known types & the size is accumulated digit by digit, so no
+ * strings are built for it. Length is the number of header bytes including the terminating null.
+ */
+public record ObjectHeader(String type, long size, int length) {
+    // Longest possible header: "chunked " + 19 digits + "\0"
+    public static final int MAX_LENGTH = 28;
+
+    private static final String[] TYPES = {"blob", "tree", "commit", ChunkManifest.TYPE};
+
+    public static ObjectHeader parse(byte[] data, int limit) throws IOException {
+        String type = null;
+        for(String candidate : TYPES) {
+            if(matches(data, limit, candidate)) {
+                type = candidate;
+                break;
+            }
+        }
+        if(type == null) throw new IOException("Unknown object type");
+
+        long size = 0;
+        int position = type.length() + 1;
+        while(position < limit && data[position] != 0) {
+            int digit = data[position++] - '0';
+            if(digit < 0 || digit > 9) throw new IOException("Corrupt object header");
+            size = size * 10 + digit;
+        }
+        if(position >= limit) throw new IOException("Corrupt object header");
+
+        return new ObjectHeader(type, size, position + 1);
+    }
+
+    private static boolean matches(byte[] data, int limit, String type) {
+        if(limit <= type.length() || data[type.length()] != ' ') return false;
+        for(int i = 0; i < type.length(); i++) {
+            if(data[i] != type.charAt(i)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package com.bkcd.Objects;
+
+import java.nio.ByteBuffer;
+import java.util.HexFormat;
+
+/**
+ * Binary object id, the SHA-1 or truncated SHA-256 hash of the object, see Hashing. The 20 bytes
+ * are held in two longs & an int instead of a 40 character hex string, which takes a fraction of
+ * the heap & makes equals/hashCode a few word compares.
+ * Words are big endian so comparing them unsigned gives the same order as comparing the bytes.
+ * Hex is only produced at the edges, for object paths, refs & output.
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+    public static final int LENGTH = 20;
+
+    private final long word1;
+    private final long word2;
+    private final int word3;
+
+    ObjectId(long word1, long word2, int word3) {
+        this.word1 = word1;
+        this.word2 = word2;
+        this.word3 = word3;
+    }
+
+    public static ObjectId fromBytes(byte[] bytes, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, LENGTH);
+        return new ObjectId(buffer.getLong(offset), buffer.getLong(offset + 8), buffer.getInt(offset + 16));
+    }
+
+    public static ObjectId fromBytes(byte[] bytes) {
+        return fromBytes(bytes, 0);
+    }
+
+    // Reads the id at an absolute position without copying it out of the buffer first
+    public static ObjectId fromBuffer(ByteBuffer buffer, int offset) {
+        return new ObjectId(buffer.getLong(offset), buffer.getLong(offset + 8), buffer.getInt(offset + 16));
+    }
+
+    public static ObjectId fromHex(String hex) {
+        if(!isHex(hex)) {
+            throw new IllegalArgumentException("Invalid object id: " + hex);
+        }
+        return new ObjectId(HexFormat.fromHexDigitsToLong(hex, 0, 16),
+                HexFormat.fromHexDigitsToLong(hex, 16, 32),
+                HexFormat.fromHexDigits(hex, 32, 40));
+    }
+
+    public static boolean isHex(String value) {
+        if(value == null || value.length() != 2 * LENGTH) return false;
+        for(int i = 0; i < value.length(); i++) {
+            if(!HexFormat.isHexDigit(value.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    public void copyTo(byte[] destination, int offset) {
+        ByteBuffer.wrap(destination, offset, LENGTH)
+                .putLong(offset, word1)
+                .putLong(offset + 8, word2)
+                .putInt(offset + 16, word3);
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[LENGTH];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    public String toHex() {
+        HexFormat hex = HexFormat.of();
+        return hex.toHexDigits(word1) + hex.toHexDigits(word2) + hex.toHexDigits(word3);
+    }
+
+    public int firstByte() {
+        return (int) (word1 >>> 56);
+    }
+
+    // Compares against an id stored at an absolute position of the buffer
+    public int compareTo(ByteBuffer buffer, int offset) {
+        int cmp = Long.compareUnsigned(word1, buffer.getLong(offset));
+        if(cmp != 0) return cmp;
+        cmp = Long.compareUnsigned(word2, buffer.getLong(offset + 8));
+        if(cmp != 0) return cmp;
+        return Integer.compareUnsigned(word3, buffer.getInt(offset + 16));
+    }
+
+    @Override
+    public int compareTo(ObjectId other) {
+        int cmp = Long.compareUnsigned(word1, other.word1);
+        if(cmp != 0) return cmp;
+        cmp = Long.compareUnsigned(word2, other.word2);
+        if(cmp != 0) return cmp;
+        return Integer.compareUnsigned(word3, other.word3);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(this == other) return true;
+        if(!(other instanceof ObjectId id)) return false;
+        return word1 == id.word1 && word2 == id.word2 && word3 == id.word3;
+    }
+
+    // Hash output is uniformly distributed, so any slice of it already is a good hash
+    @Override
+    public int hashCode() {
+        return (int) (word1 >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    long word1() { return word1; }
+    long word2() { return word2; }
+    int word3() { return word3; }
+}
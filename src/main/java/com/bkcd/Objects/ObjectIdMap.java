@@ -0,0 +1,120 @@
+package com.bkcd.Objects;
+
+/**
+ * Open addressing hash map keyed by object id. Keys are stored as their raw words in parallel
+ * primitive arrays rather than as ObjectId instances, so an entry costs 20 bytes plus the value
+ * reference instead of a boxed key & a HashMap node. Values must not be null.
+ */
+public class ObjectIdMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] words1;
+    private long[] words2;
+    private int[] words3;
+    private Object[] values;
+    private int size = 0;
+
+    public ObjectIdMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public ObjectIdMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(ObjectId id) {
+        int slot = find(id.word1(), id.word2(), id.word3());
+        return (slot < 0) ? null : (V) values[slot];
+    }
+
+    public boolean containsKey(ObjectId id) {
+        return find(id.word1(), id.word2(), id.word3()) >= 0;
+    }
+
+    // Returns the previous value, or null if the id wasn't present
+    @SuppressWarnings("unchecked")
+    public V put(ObjectId id, V value) {
+        int slot = slotFor(id.word1(), id.word2(), id.word3());
+        V previous = (V) values[slot];
+        if(previous == null) {
+            insert(slot, id.word1(), id.word2(), id.word3(), value);
+        } else {
+            values[slot] = value;
+        }
+        return previous;
+    }
+
+    // Returns the existing value & leaves it in place, or stores the value & returns null
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(ObjectId id, V value) {
+        int slot = slotFor(id.word1(), id.word2(), id.word3());
+        V previous = (V) values[slot];
+        if(previous == null) {
+            insert(slot, id.word1(), id.word2(), id.word3(), value);
+        }
+        return previous;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void insert(int slot, long word1, long word2, int word3, Object value) {
+        words1[slot] = word1;
+        words2[slot] = word2;
+        words3[slot] = word3;
+        values[slot] = value;
+
+        //Keeping the table at most half full keeps linear probe sequences short
+        if(++size * 2 > values.length) {
+            resize();
+        }
+    }
+
+    private int find(long word1, long word2, int word3) {
+        int slot = slotFor(word1, word2, word3);
+        return (values[slot] == null) ? -1 : slot;
+    }
+
+    // Slot holding the key, or the empty slot where it would be inserted
+    private int slotFor(long word1, long word2, int word3) {
+        int mask = values.length - 1;
+        int slot = (int) (word1 >>> 32) & mask;
+        while(values[slot] != null
+                && (words1[slot] != word1 || words2[slot] != word2 || words3[slot] != word3)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        long[] oldWords1 = words1;
+        long[] oldWords2 = words2;
+        int[] oldWords3 = words3;
+        Object[] oldValues = values;
+
+        allocate(oldValues.length * 2);
+        for(int i = 0; i < oldValues.length; i++) {
+            if(oldValues[i] == null) continue;
+            int slot = slotFor(oldWords1[i], oldWords2[i], oldWords3[i]);
+            words1[slot] = oldWords1[i];
+            words2[slot] = oldWords2[i];
+            words3[slot] = oldWords3[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        words1 = new long[capacity];
+        words2 = new long[capacity];
+        words3 = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while(capacity < expectedSize * 2) capacity <<= 1;
+        return capacity;
+    }
+}
@@ -1,52 +1,66 @@
 package com.bkcd.Objects;
 
 import com.bkcd.ObjectStore;
-import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HexFormat;
+import java.util.List;
 import java.util.Set;
 
 public class Tree implements ObjectEntity{
     private HashMap<String, ObjectEntity> childNodes = new HashMap<>();
-    private String id = null;
+    private ObjectId id = null;
+    //Set for trees reused from the cache tree, they are already in the object store
+    private boolean stored = false;
 
     private final String MODE = "40000";
     private final String TYPE = "tree";
 
 
+    // Tree that is already stored, only its id is known
+    public static Tree existing(ObjectId id) {
+        Tree tree = new Tree();
+        tree.id = id;
+        tree.stored = true;
+        return tree;
+    }
+
     public void add(String path, Blob blob) {
         int pathSeparator = path.indexOf("/");
 
         if(pathSeparator == -1) {
             childNodes.put(path, new Blob(blob.getId(), blob.getMode()));
         } else {
-            Tree subTree = new Tree();
+            //Files of the same directory have to end up in the same subtree
+            Tree subTree = (Tree) childNodes.computeIfAbsent(path.substring(0, pathSeparator), name -> new Tree());
             subTree.add(path.substring(pathSeparator+1), blob);
-            childNodes.put(path.substring(0, pathSeparator), subTree);
         }
     }
 
-    public byte[] getContent() throws IOException {
+    public void addChild(String name, ObjectEntity node) {
+        childNodes.put(name, node);
+    }
+
+    public byte[] getContent(Hashing.ObjectFormat format) throws IOException {
         String[] childNames = childNodes.keySet().toArray(new String[0]);
         Arrays.sort(childNames);
 
         ByteArrayOutputStream childStream = new ByteArrayOutputStream();
         String childContent = null;
-        String childId = null;
+        byte[] childId = new byte[ObjectId.LENGTH];
 
         for(String child : childNames) {
             ObjectEntity childNode = childNodes.get(child);
 
             childContent = childNode.getMode() + " " + child + "\0";
-            childStream.write(childContent.getBytes(StandardCharsets.US_ASCII));
+            childStream.write(childContent.getBytes(StandardCharsets.UTF_8));
 
-            childId = childNode.getId();
-            childStream.write(HexFormat.of().parseHex(childId));
+            childNode.getId().copyTo(childId, 0);
+            childStream.write(childId);
         }
 
         String treeInfo = "tree " + childStream.size() + "\0";
@@ -57,16 +71,34 @@ public class Tree implements ObjectEntity{
         byte[] content = finalOutputStream.toByteArray();
 
         if(this.id == null) {
-            setId(content);
+            setId(format, content);
         }
         return content;
     }
 
-    private void setId(byte[] content) {
-        this.id = DigestUtils.sha1Hex(content);
+    /**
+     * Parses the entries of a stored tree body, without its header. Each entry is the mode & name
+     * separated by a space, a null byte & the binary id of the child.
+     */
+    public static List<TreeEntry> parseEntries(byte[] rawTree) {
+        int position = 0;
+        List<TreeEntry> entries = new ArrayList<>();
+        while(position < rawTree.length) {
+            int nameEnd = position;
+            while(rawTree[nameEnd] != 0) nameEnd++;
+
+            String[] modeAndName = new String(rawTree, position, nameEnd - position, StandardCharsets.UTF_8).split(" ", 2);
+            entries.add(new TreeEntry(modeAndName[1], modeAndName[0], ObjectId.fromBytes(rawTree, nameEnd + 1)));
+            position = nameEnd + 1 + ObjectId.LENGTH;
+        }
+        return entries;
+    }
+
+    private void setId(Hashing.ObjectFormat format, byte[] content) {
+        this.id = Hashing.hash(format, content);
     }
 
-    public String getId() {
+    public ObjectId getId() {
         return this.id;
     }
 
@@ -78,6 +110,8 @@ public class Tree implements ObjectEntity{
         return this.MODE;
     }
     public void generate(ObjectStore storage) throws IOException {
+        if(stored) return;
+
         Set<String> childPaths = childNodes.keySet();
 
         for(String path : childPaths) {
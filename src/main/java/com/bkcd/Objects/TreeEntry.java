@@ -0,0 +1,8 @@
+package com.bkcd.Objects;
+
+// One child of a stored tree, as read back from its object
+public record TreeEntry(String name, String mode, ObjectId id) {
+    public boolean isTree() {
+        return mode.equals("40000");
+    }
+}
@@ -0,0 +1,116 @@
+package com.bkcd.Pack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of stored objects, used for loose object files & pack entries alike. Every codec
+ * output starts with a byte that tells which codec wrote it, so objects written with different
+ * codecs can be mixed in one store & are read without knowing the codec the repo is set to.
+ *
+ * deflate writes a plain zlib stream, whose first byte always has 8 in its low bits, objects
+ * written before codecs existed are read as they are. Every other codec starts its output with
+ * a marker byte that can't be the start of a zlib stream:
+ *   0x00  store, the content as it is
+ *   0x01  lz, see LzCodec
+ */
+public abstract class Codec {
+    static final int STORE_MARKER = 0x00;
+    static final int LZ_MARKER = 0x01;
+
+    public static final Codec STORE = new StoreCodec();
+    public static final Codec DEFLATE = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+    public static final Codec LZ = new LzCodec();
+
+    // Name as written in settings, parse() turns it back into the codec
+    public abstract String name();
+
+    // Compressed content including the codec's marker
+    abstract byte[] compressBytes(byte[] data) throws IOException;
+
+    abstract byte[] decompressBytes(ByteBuffer compressed) throws IOException;
+
+    /**
+     * Stream compressing everything written to it into out, closing it closes out. Content that
+     * turns out incompressible is still compressed, unlike with compress() the output is already
+     * written by then.
+     */
+    public abstract OutputStream compressing(OutputStream out) throws IOException;
+
+    // The stream is positioned after the marker, for deflate at its first byte
+    abstract InputStream decompressStream(InputStream in) throws IOException;
+
+    /**
+     * Compressed content, stored as it is if the codec doesn't make it any smaller. Small & already
+     * compressed objects would otherwise cost more space than their content & time to read.
+     */
+    public final byte[] compress(byte[] data) throws IOException {
+        byte[] compressed = compressBytes(data);
+        if(compressed.length <= data.length || this == STORE) return compressed;
+        return STORE.compressBytes(data);
+    }
+
+    // Whether the codec makes the sample noticeably smaller, content that barely compresses is better stored as it is
+    public boolean compresses(byte[] sample) throws IOException {
+        return this != STORE && compressBytes(sample).length < sample.length - sample.length / 32;
+    }
+
+    // Content of compressed data written by any codec
+    public static byte[] decompress(ByteBuffer compressed) throws IOException {
+        if(!compressed.hasRemaining()) throw new IOException("Empty compressed object");
+
+        int first = compressed.get(compressed.position()) & 0xff;
+        Codec codec = detect(first);
+        if(codec == DEFLATE) return codec.decompressBytes(compressed);
+        return codec.decompressBytes(compressed.slice(compressed.position() + 1, compressed.remaining() - 1));
+    }
+
+    // Stream over the content of compressed data written by any codec
+    public static InputStream decompressing(InputStream compressed) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(compressed, 1);
+        int first = in.read();
+        if(first < 0) {
+            in.close();
+            throw new IOException("Empty compressed object");
+        }
+
+        Codec codec = detect(first);
+        //The first byte of a zlib stream is part of the stream, a marker isn't
+        if(codec == DEFLATE) in.unread(first);
+        return codec.decompressStream(in);
+    }
+
+    // Whether the compressed data is a zlib stream
+    public static boolean isDeflate(int firstByte) {
+        return (firstByte & 0x0f) == 8;
+    }
+
+    /**
+     * Codec for a setting: "deflate", "deflate:<level>" with a level from 0 to 9, "store" or "lz".
+     * Returns null for anything else.
+     */
+    public static Codec parse(String setting) {
+        String name = setting.trim();
+        if(name.equals("store")) return STORE;
+        if(name.equals("lz")) return LZ;
+        if(name.equals("deflate")) return DEFLATE;
+        if(name.matches("deflate:[0-9]")) return new DeflateCodec(name.charAt(name.length() - 1) - '0');
+        return null;
+    }
+
+    private static Codec detect(int firstByte) throws IOException {
+        if(isDeflate(firstByte)) return DEFLATE;
+        if(firstByte == STORE_MARKER) return STORE;
+        if(firstByte == LZ_MARKER) return LZ;
+        throw new IOException("Unknown compression codec " + firstByte);
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
@@ -0,0 +1,104 @@
+package com.bkcd.Pack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// zlib streams, the format objects had before codecs existed. Reading doesn't depend on the level.
+class DeflateCodec extends Codec {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final int level;
+
+    DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public String name() {
+        return (level == Deflater.DEFAULT_COMPRESSION) ? "deflate" : "deflate:" + level;
+    }
+
+    @Override
+    byte[] compressBytes(byte[] data) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            //Large enough for incompressible data, so a single pass is enough almost always
+            byte[] compressed = new byte[data.length + data.length / 1000 + 64];
+            int length = 0;
+            while(!deflater.finished()) {
+                if(length == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            return Arrays.copyOf(compressed, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    byte[] decompressBytes(ByteBuffer compressed) throws IOException {
+        Inflater inflater = InflaterPool.acquire();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.remaining() * 2);
+            byte[] buffer = new byte[8192];
+            while(!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if(count == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed object");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed object", e);
+        } finally {
+            InflaterPool.release(inflater);
+        }
+    }
+
+    // The deflater is ended on close rather than left to the garbage collector
+    @Override
+    public OutputStream compressing(OutputStream out) {
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, STREAM_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    InputStream decompressStream(InputStream in) {
+        Inflater inflater = InflaterPool.acquire();
+        return new InflaterInputStream(in, inflater, STREAM_BUFFER_SIZE) {
+            private boolean released = false;
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                if(!released) {
+                    released = true;
+                    InflaterPool.release(inflater);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,175 @@
+package com.bkcd.Pack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Copy/insert delta encoding between two objects.
+ *
+ * Delta layout: base size (varint) | result size (varint) | instructions...
+ *   insert: 0x00 | length (varint) | literal bytes
+ *   copy:   0x01 | base offset (varint) | length (varint)
+ *
+ * The base is indexed in blocks of BLOCK_SIZE bytes, the target is then scanned with a rolling
+ * hash so each position is looked up in constant time. Matches are verified & extended in both
+ * directions before a copy is emitted, so encoding is linear in the size of both objects.
+ */
+public class Delta {
+    private static final int BLOCK_SIZE = 16;
+    private static final int MIN_COPY = BLOCK_SIZE;
+
+    private static final byte INSERT = 0x00;
+    private static final byte COPY = 0x01;
+
+    private static final int PRIME = 31;
+    private static final int HIGHEST_POWER = power(PRIME, BLOCK_SIZE - 1);
+
+    public static byte[] encode(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        if(base.length < BLOCK_SIZE || target.length < BLOCK_SIZE) {
+            writeInsert(out, target, 0, target.length);
+            return out.toByteArray();
+        }
+
+        //Only the first offset of every block hash is kept, later duplicates rarely give longer matches
+        HashMap<Integer, Integer> blocks = new HashMap<>(base.length / BLOCK_SIZE * 2);
+        for(int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+            blocks.putIfAbsent(hash(base, offset), offset);
+        }
+
+        int insertStart = 0;
+        int position = 0;
+        int rolling = hash(target, 0);
+
+        while(position + BLOCK_SIZE <= target.length) {
+            Integer baseOffset = blocks.get(rolling);
+
+            if(baseOffset != null && matches(base, baseOffset, target, position, BLOCK_SIZE)) {
+                int matchStart = position;
+                int baseStart = baseOffset;
+                while(matchStart > insertStart && baseStart > 0 && target[matchStart - 1] == base[baseStart - 1]) {
+                    matchStart--;
+                    baseStart--;
+                }
+
+                int matchEnd = position + BLOCK_SIZE;
+                int baseEnd = baseOffset + BLOCK_SIZE;
+                while(matchEnd < target.length && baseEnd < base.length && target[matchEnd] == base[baseEnd]) {
+                    matchEnd++;
+                    baseEnd++;
+                }
+
+                if(matchEnd - matchStart >= MIN_COPY) {
+                    writeInsert(out, target, insertStart, matchStart - insertStart);
+                    out.write(COPY);
+                    writeVarint(out, baseStart);
+                    writeVarint(out, matchEnd - matchStart);
+
+                    insertStart = matchEnd;
+                    position = matchEnd;
+                    if(position + BLOCK_SIZE <= target.length) {
+                        rolling = hash(target, position);
+                    }
+                    continue;
+                }
+            }
+
+            if(position + BLOCK_SIZE < target.length) {
+                rolling = (rolling - (target[position] & 0xff) * HIGHEST_POWER) * PRIME + (target[position + BLOCK_SIZE] & 0xff);
+            }
+            position++;
+        }
+
+        writeInsert(out, target, insertStart, target.length - insertStart);
+        return out.toByteArray();
+    }
+
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        int[] cursor = {0};
+        int baseSize = readVarint(delta, cursor);
+        int resultSize = readVarint(delta, cursor);
+        if(baseSize != base.length) {
+            throw new IOException("Delta base size mismatch, expected " + baseSize + " but got " + base.length);
+        }
+
+        byte[] result = new byte[resultSize];
+        int written = 0;
+
+        while(cursor[0] < delta.length) {
+            byte op = delta[cursor[0]++];
+            if(op == INSERT) {
+                int length = readVarint(delta, cursor);
+                System.arraycopy(delta, cursor[0], result, written, length);
+                cursor[0] += length;
+                written += length;
+            } else if(op == COPY) {
+                int offset = readVarint(delta, cursor);
+                int length = readVarint(delta, cursor);
+                System.arraycopy(base, offset, result, written, length);
+                written += length;
+            } else {
+                throw new IOException("Corrupt delta instruction: " + op);
+            }
+        }
+
+        if(written != resultSize) {
+            throw new IOException("Delta produced " + written + " bytes, expected " + resultSize);
+        }
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int offset, int length) {
+        if(length == 0) return;
+        out.write(INSERT);
+        writeVarint(out, length);
+        out.write(data, offset, length);
+    }
+
+    private static boolean matches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for(int i = 0; i < length; i++) {
+            if(a[aOffset + i] != b[bOffset + i]) return false;
+        }
+        return true;
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int hash = 0;
+        for(int i = 0; i < BLOCK_SIZE; i++) {
+            hash = hash * PRIME + (data[offset + i] & 0xff);
+        }
+        return hash;
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for(int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    // Little endian base 128, 7 bits per byte with the high bit marking a continuation
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] cursor) {
+        int value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = data[cursor[0]++];
+            value |= (current & 0x7f) << shift;
+            shift += 7;
+        } while((current & 0x80) != 0);
+        return value;
+    }
+}
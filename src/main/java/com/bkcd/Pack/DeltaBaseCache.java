@@ -0,0 +1,35 @@
+package com.bkcd.Pack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Size bounded LRU of reconstructed delta bases, keyed by their offset within the pack
+class DeltaBaseCache {
+    private final long maxBytes;
+    private long currentBytes = 0;
+
+    private final LinkedHashMap<Long, byte[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    DeltaBaseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized byte[] get(long offset) {
+        return entries.get(offset);
+    }
+
+    synchronized void put(long offset, byte[] content) {
+        if(content.length > maxBytes) return;
+
+        byte[] previous = entries.put(offset, content);
+        if(previous != null) currentBytes -= previous.length;
+        currentBytes += content.length;
+
+        var iterator = entries.entrySet().iterator();
+        while(currentBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Long, byte[]> eldest = iterator.next();
+            currentBytes -= eldest.getValue().length;
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.bkcd.Pack;
+
+import com.bkcd.Objects.ObjectId;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses delta bases while writing a pack. Candidates are ordered so that similar objects end
+ * up next to each other: same type, same file name & then by decreasing size, since deleting
+ * from a larger base gives smaller deltas than inserting into a smaller one. Every object is
+ * tried against the previous WINDOW objects & the smallest delta wins, provided it saves at
+ * least half of the object. Chains never grow beyond MAX_DEPTH, which bounds read latency.
+ */
+public class DeltaPacker {
+    private static final int WINDOW = 10;
+    private static final int MAX_DEPTH = 10;
+
+    // Larger objects are stored whole, loading a window of them would need too much memory
+    private static final long MAX_DELTA_OBJECT_SIZE = 16L * 1024 * 1024;
+
+    public record Candidate(ObjectId id, String type, long size, String pathHint) {}
+
+    public interface ObjectLoader {
+        byte[] read(ObjectId id) throws IOException;
+    }
+
+    private record WindowEntry(ObjectId id, String type, byte[] content, int depth) {}
+
+    private final Path packDirectory;
+    private final ObjectLoader loader;
+    private final Codec codec;
+    private int objectCount = 0;
+    private int deltaCount = 0;
+
+    public DeltaPacker(Path packDirectory, Codec codec, ObjectLoader loader) {
+        this.packDirectory = packDirectory;
+        this.codec = codec;
+        this.loader = loader;
+    }
+
+    /**
+     * Writes all candidates into new packs. A new pack is started whenever the current one
+     * would grow too large to be memory mapped, the window is cleared at that point since
+     * a delta base has to live in the same pack as its deltas.
+     */
+    public void pack(List<Candidate> candidates) throws IOException {
+        candidates.sort(Comparator.comparing(Candidate::type)
+                .thenComparing(candidate -> fileName(candidate.pathHint()))
+                .thenComparing(Candidate::size, Comparator.reverseOrder()));
+
+        ArrayDeque<WindowEntry> window = new ArrayDeque<>(WINDOW);
+        PackWriter writer = new PackWriter(packDirectory, codec);
+
+        try {
+            for(Candidate candidate : candidates) {
+                if(writer.size() > PackWriter.MAX_PACK_SIZE) {
+                    objectCount += writer.count();
+                    writer.finish();
+                    writer = new PackWriter(packDirectory, codec);
+                    window.clear();
+                }
+                write(writer, window, candidate);
+            }
+            objectCount += writer.count();
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void write(PackWriter writer, ArrayDeque<WindowEntry> window, Candidate candidate) throws IOException {
+        byte[] content = loader.read(candidate.id());
+
+        if(candidate.size() > MAX_DELTA_OBJECT_SIZE) {
+            writer.add(candidate.id(), content);
+            return;
+        }
+
+        WindowEntry best = null;
+        byte[] bestDelta = null;
+        for(WindowEntry base : window) {
+            if(!base.type().equals(candidate.type()) || base.depth() >= MAX_DEPTH) continue;
+
+            byte[] delta = Delta.encode(base.content(), content);
+            if(delta.length < content.length / 2 && (bestDelta == null || delta.length < bestDelta.length)) {
+                best = base;
+                bestDelta = delta;
+            }
+        }
+
+        int depth = 0;
+        if(best != null) {
+            writer.addDelta(candidate.id(), best.id(), bestDelta);
+            depth = best.depth() + 1;
+            deltaCount++;
+        } else {
+            writer.add(candidate.id(), content);
+        }
+
+        if(window.size() == WINDOW) window.removeFirst();
+        window.addLast(new WindowEntry(candidate.id(), candidate.type(), content, depth));
+    }
+
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    public int getDeltaCount() {
+        return deltaCount;
+    }
+
+    private static String fileName(String path) {
+        if(path == null) return "";
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,35 @@
+package com.bkcd.Pack;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Inflaters hold native zlib state that is expensive to set up & only freed once end() is called,
+ * so they are reset & handed out again instead of creating one per object read.
+ * Only a bounded number are kept around, any surplus released is ended right away.
+ */
+public class InflaterPool {
+    private static final int MAX_POOLED = 32;
+
+    private static final ConcurrentLinkedQueue<Inflater> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    public static Inflater acquire() {
+        Inflater inflater = pool.poll();
+        if(inflater == null) return new Inflater();
+
+        pooled.decrementAndGet();
+        return inflater;
+    }
+
+    public static void release(Inflater inflater) {
+        if(pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            inflater.end();
+            return;
+        }
+        inflater.reset();
+        pool.offer(inflater);
+    }
+}
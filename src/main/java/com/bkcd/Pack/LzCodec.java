@@ -0,0 +1,350 @@
+package com.bkcd.Pack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Byte oriented LZ77 in pure Java, in the style of LZ4. There is no entropy coding, only runs of
+ * literals & back references found through a hash of the next 4 bytes, so it compresses several
+ * times faster than deflate & reads faster still, at the cost of larger output.
+ *
+ * Content is cut into blocks of BLOCK_SIZE that are compressed on their own, streams only ever
+ * buffer a single block & back references always fit in 2 bytes.
+ *   Block:    raw length (4 bytes) | stored length (4 bytes) | stored data
+ *   Sequence: token | more literal count | literals | offset (2 bytes, little endian) | more match length
+ * The high 4 bits of the token hold the literal count, the low 4 bits the match length minus 4.
+ * A count of 15 is continued in the following bytes, which are added up until one is below 255.
+ * The last sequence of a block only has literals. A block that doesn't get smaller is stored as it
+ * is, its stored length then equals its raw length.
+ */
+final class LzCodec extends Codec {
+    static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 14;
+    private static final int MAX_OFFSET = 0xffff;
+
+    // Reads 4 & 8 bytes of an array at once, in the byte order the format doesn't depend on
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    @Override
+    public String name() {
+        return "lz";
+    }
+
+    @Override
+    byte[] compressBytes(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        out.write(LZ_MARKER);
+        byte[] block = new byte[maxBlockLength(Math.min(data.length, BLOCK_SIZE))];
+        for(int start = 0; start < data.length; start += BLOCK_SIZE) {
+            writeBlock(out, data, start, Math.min(BLOCK_SIZE, data.length - start), block);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    byte[] decompressBytes(ByteBuffer compressed) throws IOException {
+        byte[] stored = new byte[compressed.remaining()];
+        compressed.get(compressed.position(), stored);
+
+        //Raw lengths are added up first, so the content is put together in an array of its exact size
+        long total = 0;
+        for(int position = 0; position < stored.length; ) {
+            if(stored.length - position < 8) throw new IOException("Truncated lz block");
+            int rawLength = rawLength(stored, position);
+            int storedLength = storedLength(stored, position);
+            if(rawLength > BLOCK_SIZE || storedLength < 0 || storedLength > rawLength || storedLength > stored.length - position - 8) {
+                throw new IOException("Corrupt lz block");
+            }
+            total += rawLength;
+            position += 8 + storedLength;
+        }
+        if(total > Integer.MAX_VALUE) throw new IOException("Corrupt lz block");
+
+        byte[] data = new byte[(int) total];
+        int out = 0;
+        for(int position = 0; position < stored.length; ) {
+            int rawLength = rawLength(stored, position);
+            int storedLength = storedLength(stored, position);
+            readBlock(stored, position + 8, storedLength, data, out, rawLength);
+            position += 8 + storedLength;
+            out += rawLength;
+        }
+        return data;
+    }
+
+    @Override
+    public OutputStream compressing(OutputStream out) throws IOException {
+        out.write(LZ_MARKER);
+        return new OutputStream() {
+            private final byte[] buffer = new byte[BLOCK_SIZE];
+            private final byte[] block = new byte[maxBlockLength(BLOCK_SIZE)];
+            private int count = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while(length > 0) {
+                    int copied = Math.min(length, buffer.length - count);
+                    System.arraycopy(bytes, offset, buffer, count, copied);
+                    count += copied;
+                    offset += copied;
+                    length -= copied;
+                    if(count == buffer.length) flushBlock();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(count > 0) flushBlock();
+                out.close();
+            }
+
+            private void flushBlock() throws IOException {
+                writeBlock(out, buffer, 0, count, block);
+                count = 0;
+            }
+        };
+    }
+
+    @Override
+    InputStream decompressStream(InputStream in) {
+        return new InputStream() {
+            private final byte[] header = new byte[8];
+            private byte[] stored = new byte[0];
+            private final byte[] buffer = new byte[BLOCK_SIZE];
+            private int position = 0;
+            private int limit = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return (read(single, 0, 1) < 0) ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if(length == 0) return 0;
+                if(position == limit && !nextBlock()) return -1;
+
+                int copied = Math.min(length, limit - position);
+                System.arraycopy(buffer, position, bytes, offset, copied);
+                position += copied;
+                return copied;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+
+            // Reads & decompresses the next block, false at the end of the stream
+            private boolean nextBlock() throws IOException {
+                int headerRead = in.readNBytes(header, 0, header.length);
+                if(headerRead == 0) return false;
+                if(headerRead < header.length) throw new IOException("Truncated lz block");
+
+                int rawLength = rawLength(header, 0);
+                int storedLength = storedLength(header, 0);
+                if(rawLength > BLOCK_SIZE || storedLength < 0 || storedLength > rawLength) throw new IOException("Corrupt lz block");
+                if(stored.length < storedLength) stored = new byte[storedLength];
+                if(in.readNBytes(stored, 0, storedLength) < storedLength) throw new IOException("Truncated lz block");
+
+                readBlock(stored, 0, storedLength, buffer, 0, rawLength);
+                position = 0;
+                limit = rawLength;
+                return true;
+            }
+        };
+    }
+
+    private static void writeBlock(OutputStream out, byte[] data, int start, int length, byte[] block) throws IOException {
+        int compressedLength = compressBlock(data, start, length, block);
+        boolean compressed = compressedLength < length;
+
+        writeInt(out, length);
+        writeInt(out, compressed ? compressedLength : length);
+        out.write(compressed ? block : data, compressed ? 0 : start, compressed ? compressedLength : length);
+    }
+
+    /**
+     * Compresses the range into the block array & returns the compressed length. Positions are
+     * tried at growing steps the longer no match has been found, incompressible data is skipped
+     * through quickly that way.
+     */
+    static int compressBlock(byte[] data, int start, int length, byte[] block) {
+        int[] table = new int[1 << HASH_BITS];      //Position + 1 of the last occurrence of each hash, 0 for none
+        int end = start + length;
+        int matchLimit = end - MIN_MATCH;
+        int anchor = start;
+        int position = start;
+        int out = 0;
+
+        while(position <= matchLimit) {
+            int sequence = readInt(data, position);
+            int hash = hash(sequence);
+            int candidate = table[hash] - 1 + start;
+            table[hash] = position - start + 1;
+
+            if(candidate < start || position - candidate > MAX_OFFSET || readInt(data, candidate) != sequence) {
+                position += 1 + ((position - anchor) >>> 6);
+                continue;
+            }
+
+            //Extend the match backwards over pending literals & then forwards as far as it goes
+            while(position > anchor && candidate > start && data[position - 1] == data[candidate - 1]) {
+                position--;
+                candidate--;
+            }
+            int matchEnd = matchEnd(data, position + MIN_MATCH, candidate + MIN_MATCH, end);
+
+            out = writeSequence(data, anchor, position - anchor, position - candidate, matchEnd - position, block, out);
+            position = matchEnd;
+            anchor = matchEnd;
+
+            //The position just before the end of a match is often where the next one starts in a repetition
+            if(position - 2 <= matchLimit && position - 2 > start) {
+                table[hash(readInt(data, position - 2))] = position - 2 - start + 1;
+            }
+        }
+
+        int literals = end - anchor;
+        block[out++] = (byte) (Math.min(literals, 15) << 4);
+        if(literals >= 15) out = writeCount(literals - 15, block, out);
+        System.arraycopy(data, anchor, block, out, literals);
+        return out + literals;
+    }
+
+    // End of the match that continues at position & from, compared 8 bytes at a time
+    private static int matchEnd(byte[] data, int position, int from, int end) {
+        while(position <= end - 8) {
+            long difference = (long) LONG.get(data, position) ^ (long) LONG.get(data, from);
+            if(difference != 0) return position + (Long.numberOfTrailingZeros(difference) >>> 3);
+            position += 8;
+            from += 8;
+        }
+        while(position < end && data[position] == data[from]) {
+            position++;
+            from++;
+        }
+        return position;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private static int writeSequence(byte[] data, int literalStart, int literals, int offset, int matchLength, byte[] block, int out) {
+        int extraMatch = matchLength - MIN_MATCH;
+        block[out++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(extraMatch, 15));
+        if(literals >= 15) out = writeCount(literals - 15, block, out);
+
+        System.arraycopy(data, literalStart, block, out, literals);
+        out += literals;
+
+        block[out++] = (byte) offset;
+        block[out++] = (byte) (offset >>> 8);
+        if(extraMatch >= 15) out = writeCount(extraMatch - 15, block, out);
+        return out;
+    }
+
+    private static int writeCount(int count, byte[] block, int out) {
+        while(count >= 255) {
+            block[out++] = (byte) 255;
+            count -= 255;
+        }
+        block[out++] = (byte) count;
+        return out;
+    }
+
+    // Decompresses a stored block of the given raw length into data, starting at out
+    static void readBlock(byte[] stored, int start, int storedLength, byte[] data, int out, int rawLength) throws IOException {
+        if(storedLength == rawLength) {
+            System.arraycopy(stored, start, data, out, rawLength);
+            return;
+        }
+
+        int in = start;
+        int end = start + storedLength;
+        int outStart = out;
+        int outEnd = out + rawLength;
+        while(true) {
+            if(in >= end) throw new IOException("Corrupt lz block");
+            int token = stored[in++] & 0xff;
+
+            int literals = token >>> 4;
+            if(literals == 15) {
+                int next;
+                do {
+                    if(in >= end) throw new IOException("Corrupt lz block");
+                    next = stored[in++] & 0xff;
+                    literals += next;
+                } while(next == 255);
+            }
+            if(literals > end - in || literals > outEnd - out) throw new IOException("Corrupt lz block");
+            System.arraycopy(stored, in, data, out, literals);
+            in += literals;
+            out += literals;
+            if(in == end) break;
+
+            if(end - in < 2) throw new IOException("Corrupt lz block");
+            int offset = (stored[in] & 0xff) | (stored[in + 1] & 0xff) << 8;
+            in += 2;
+
+            int matchLength = (token & 0x0f) + MIN_MATCH;
+            if((token & 0x0f) == 15) {
+                int next;
+                do {
+                    if(in >= end) throw new IOException("Corrupt lz block");
+                    next = stored[in++] & 0xff;
+                    matchLength += next;
+                } while(next == 255);
+            }
+            if(offset == 0 || offset > out - outStart || matchLength > outEnd - out) throw new IOException("Corrupt lz block");
+
+            //A match may overlap the bytes it produces, it repeats the last offset bytes then & is copied a repetition at a time
+            for(int copied = 0; copied < matchLength; ) {
+                int length = Math.min(offset, matchLength - copied);
+                System.arraycopy(data, out - offset, data, out, length);
+                out += length;
+                copied += length;
+            }
+        }
+        if(out != outEnd) throw new IOException("Corrupt lz block");
+    }
+
+    // Worst case of a block that doesn't compress at all: a literal count byte for every 255 literals
+    static int maxBlockLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int rawLength(byte[] bytes, int position) {
+        return ByteBuffer.wrap(bytes).getInt(position);
+    }
+
+    private static int storedLength(byte[] bytes, int position) {
+        return ByteBuffer.wrap(bytes).getInt(position + 4);
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return (int) INT.get(data, position);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,171 @@
+package com.bkcd.Pack;
+
+import com.bkcd.Objects.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read access to a pack & its index. Both files are memory mapped, a lookup first narrows the
+ * range of candidate ids with the fanout table & then binary searches the sorted ids.
+ *
+ * Pack layout:  "PACK" | version | object count | entries... | SHA-1 of the entries
+ * Entry layout: type (1 byte) | compressed length (4 bytes) | compressed object incl. its header
+ * Delta entry:  type (1 byte) | base id (20 bytes) | compressed length (4 bytes) | compressed delta
+ * Entries are compressed by any Codec, each one records its own.
+ * The base of a delta entry is always part of the same pack.
+ *
+ * Index layout: 0xff "tOc" | version | fanout (256 x 4 bytes) | sorted ids (N x 20 bytes)
+ *               | pack offsets (N x 8 bytes) | SHA-1 of the pack
+ * fanout[i] holds the number of ids whose first byte is less than or equal to i.
+ */
+public class PackFile {
+    static final byte[] PACK_SIGNATURE = {'P', 'A', 'C', 'K'};
+    static final byte[] INDEX_SIGNATURE = {(byte) 0xff, 't', 'O', 'c'};
+    static final int VERSION = 1;
+
+    static final int ID_LENGTH = ObjectId.LENGTH;
+    static final int FANOUT_START = 8;
+    static final int IDS_START = FANOUT_START + 256 * 4;
+
+    public static final byte OBJECT_FULL = 1;
+    public static final byte OBJECT_DELTA = 2;
+
+    // Reconstructed delta bases, chains share their bases so these are read over & over again
+    private static final long BASE_CACHE_BYTES = 32L * 1024 * 1024;
+
+    private final Path packPath;
+    private final MappedByteBuffer pack;
+    private final MappedByteBuffer index;
+    private final int objectCount;
+    private final DeltaBaseCache baseCache = new DeltaBaseCache(BASE_CACHE_BYTES);
+
+    public PackFile(Path indexPath) throws IOException {
+        String packName = indexPath.getFileName().toString().replaceAll("\\.idx$", ".pack");
+        this.packPath = indexPath.resolveSibling(packName);
+        this.index = map(indexPath);
+        this.pack = map(packPath);
+
+        if(!hasSignature(index, INDEX_SIGNATURE) || !hasSignature(pack, PACK_SIGNATURE)) {
+            throw new IOException("Corrupt pack: " + packPath);
+        }
+        this.objectCount = index.getInt(FANOUT_START + 255 * 4);
+    }
+
+    public boolean contains(ObjectId id) {
+        return position(id) >= 0;
+    }
+
+    // Returns the inflated object (header included) or null if this pack doesn't hold the id
+    public byte[] read(ObjectId id) throws IOException {
+        int position = position(id);
+        if(position < 0) return null;
+
+        return readAt(offset(position), false);
+    }
+
+    public List<ObjectId> ids() {
+        List<ObjectId> ids = new ArrayList<>(objectCount);
+        for(int i = 0; i < objectCount; i++) {
+            ids.add(ObjectId.fromBuffer(index, IDS_START + i * ID_LENGTH));
+        }
+        return ids;
+    }
+
+    public int size() {
+        return objectCount;
+    }
+
+    public Path getPackPath() {
+        return packPath;
+    }
+
+    public Path getIndexPath() {
+        return packPath.resolveSibling(packPath.getFileName().toString().replaceAll("\\.pack$", ".idx"));
+    }
+
+    /**
+     * Reads the entry at the given offset, resolving delta chains down to their full base.
+     * Objects read as a base for another entry are kept in the base cache, since deltas
+     * built against the same base are usually read together.
+     */
+    byte[] readAt(long offset, boolean isBase) throws IOException {
+        if(isBase) {
+            byte[] cached = baseCache.get(offset);
+            if(cached != null) return cached;
+        }
+
+        int entryStart = (int) offset;
+        byte type = pack.get(entryStart);
+        byte[] content;
+
+        if(type == OBJECT_FULL) {
+            int length = pack.getInt(entryStart + 1);
+            content = Codec.decompress(pack.slice(entryStart + 5, length));
+        } else if(type == OBJECT_DELTA) {
+            ObjectId baseId = ObjectId.fromBuffer(pack, entryStart + 1);
+            int basePosition = position(baseId);
+            if(basePosition < 0) {
+                throw new IOException("Missing delta base " + baseId + " in " + packPath);
+            }
+
+            int length = pack.getInt(entryStart + 1 + ID_LENGTH);
+            byte[] base = readAt(offset(basePosition), true);
+            content = Delta.apply(base, Codec.decompress(pack.slice(entryStart + 5 + ID_LENGTH, length)));
+        } else {
+            throw new IOException("Unknown pack entry type " + type + " in " + packPath);
+        }
+
+        if(isBase) {
+            baseCache.put(offset, content);
+        }
+        return content;
+    }
+
+    /**
+     * Position of the id within the sorted id table, or -1 when absent.
+     * The fanout table limits the binary search to ids sharing the first byte.
+     */
+    int position(ObjectId id) {
+        int first = id.firstByte();
+        int low = (first == 0) ? 0 : index.getInt(FANOUT_START + (first - 1) * 4);
+        int high = index.getInt(FANOUT_START + first * 4) - 1;
+
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = -id.compareTo(index, IDS_START + mid * ID_LENGTH);
+            if(cmp < 0) {
+                low = mid + 1;
+            } else if(cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    long offset(int position) {
+        return index.getLong(IDS_START + objectCount * ID_LENGTH + position * 8);
+    }
+
+    private static boolean hasSignature(ByteBuffer buffer, byte[] signature) {
+        for(int i = 0; i < signature.length; i++) {
+            if(buffer.get(i) != signature[i]) return false;
+        }
+        return true;
+    }
+
+    // Mappings are limited to 2 GB, larger packs have to be split by the writer
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
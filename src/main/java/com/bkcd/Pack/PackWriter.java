@@ -0,0 +1,183 @@
+package com.bkcd.Pack;
+
+import com.bkcd.Objects.Hashing;
+import com.bkcd.Objects.ObjectId;
+import com.bkcd.Objects.ObjectIdMap;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Writes a new pack & its index. Entries are streamed into a temp file as they are added,
+ * the index is only built in finish() once all ids are known. Both files are renamed into
+ * place at the very end, so a pack is never visible to readers before its index is complete.
+ */
+public class PackWriter implements Closeable {
+    // Packs are memory mapped while reading, so a single pack has to stay below 2 GB
+    public static final long MAX_PACK_SIZE = Integer.MAX_VALUE - (64L * 1024 * 1024);
+
+    private final Path packDirectory;
+    private final Path tempPath;
+    private final MessageDigest digest;
+    private final DataOutputStream out;
+    private final Codec codec;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final ObjectIdMap<Boolean> addedIds = new ObjectIdMap<>();
+    private long offset = 12;
+    private boolean finished = false;
+
+    private record Entry(ObjectId id, long offset) {}
+
+    // Objects & deltas added inflated are compressed with the codec, compressed ones are copied as they are
+    public PackWriter(Path packDirectory, Codec codec) throws IOException {
+        this.packDirectory = packDirectory;
+        this.codec = codec;
+        Files.createDirectories(packDirectory);
+        this.tempPath = Files.createTempFile(packDirectory, "tmp_pack_", "");
+        this.digest = Hashing.newChecksum();
+
+        FileOutputStream fileStream = new FileOutputStream(tempPath.toFile());
+        //Header is rewritten with the real object count once the pack is finished
+        fileStream.write(header(0));
+        this.out = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(fileStream, 64 * 1024), digest));
+    }
+
+    // Adds an object that is already compressed, e.g. a loose object file or an entry of another pack
+    public void addCompressed(ObjectId id, InputStream compressed, long length) throws IOException {
+        if(addedIds.putIfAbsent(id, true) != null) return;
+
+        entries.add(new Entry(id, offset));
+        out.writeByte(PackFile.OBJECT_FULL);
+        out.writeInt((int) length);
+        long copied = compressed.transferTo(out);
+        if(copied != length) {
+            throw new IOException("Expected " + length + " compressed bytes for " + id + " but got " + copied);
+        }
+        offset += 5 + length;
+    }
+
+    // Adds a delta against a base that is part of the same pack
+    public void addDelta(ObjectId id, ObjectId baseId, byte[] delta) throws IOException {
+        if(addedIds.putIfAbsent(id, true) != null) return;
+
+        byte[] compressed = codec.compress(delta);
+        entries.add(new Entry(id, offset));
+        out.writeByte(PackFile.OBJECT_DELTA);
+        out.write(baseId.toBytes());
+        out.writeInt(compressed.length);
+        out.write(compressed);
+        offset += 5 + PackFile.ID_LENGTH + compressed.length;
+    }
+
+    // Adds an inflated object, header included
+    public void add(ObjectId id, byte[] rawObject) throws IOException {
+        if(addedIds.containsKey(id)) return;
+
+        byte[] compressed = codec.compress(rawObject);
+        addCompressed(id, new ByteArrayInputStream(compressed), compressed.length);
+    }
+
+    // Whether the object was added to this pack already
+    public boolean contains(ObjectId id) {
+        return addedIds.containsKey(id);
+    }
+
+    public long size() {
+        return offset;
+    }
+
+    public int count() {
+        return entries.size();
+    }
+
+    /**
+     * Completes the pack & writes its index. Returns the index path of the new pack,
+     * or null if no objects were added.
+     */
+    public Path finish() throws IOException {
+        out.close();
+        finished = true;
+        if(entries.isEmpty()) {
+            Files.deleteIfExists(tempPath);
+            return null;
+        }
+
+        byte[] checksum = digest.digest();
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(header(entries.size())), 0);
+            channel.write(ByteBuffer.wrap(checksum), channel.size());
+        }
+
+        String name = "pack-" + HexFormat.of().formatHex(checksum);
+        Path indexPath = packDirectory.resolve(name + ".idx");
+        Path tempIndexPath = Files.createTempFile(packDirectory, "tmp_idx_", "");
+        try {
+            writeIndex(tempIndexPath, checksum);
+            Files.move(tempPath, packDirectory.resolve(name + ".pack"), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tempIndexPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempIndexPath);
+        }
+        return indexPath;
+    }
+
+    private void writeIndex(Path indexPath, byte[] packChecksum) throws IOException {
+        entries.sort((a, b) -> a.id().compareTo(b.id()));
+
+        int[] fanout = new int[256];
+        for(Entry entry : entries) {
+            fanout[entry.id().firstByte()]++;
+        }
+        for(int i = 1; i < 256; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+
+        try (DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexPath.toFile())))) {
+            indexOut.write(PackFile.INDEX_SIGNATURE);
+            indexOut.writeInt(PackFile.VERSION);
+            for(int count : fanout) {
+                indexOut.writeInt(count);
+            }
+            for(Entry entry : entries) {
+                indexOut.write(entry.id().toBytes());
+            }
+            for(Entry entry : entries) {
+                indexOut.writeLong(entry.offset());
+            }
+            indexOut.write(packChecksum);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(!finished) {
+            out.close();
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private static byte[] header(int objectCount) {
+        return ByteBuffer.allocate(12)
+                .put(PackFile.PACK_SIGNATURE)
+                .putInt(PackFile.VERSION)
+                .putInt(objectCount)
+                .array();
+    }
+}
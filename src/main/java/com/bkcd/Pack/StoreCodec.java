@@ -0,0 +1,46 @@
+package com.bkcd.Pack;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Content kept as it is behind the marker, for content that doesn't compress
+class StoreCodec extends Codec {
+    @Override
+    public String name() {
+        return "store";
+    }
+
+    @Override
+    byte[] compressBytes(byte[] data) {
+        byte[] stored = new byte[data.length + 1];
+        stored[0] = STORE_MARKER;
+        System.arraycopy(data, 0, stored, 1, data.length);
+        return stored;
+    }
+
+    @Override
+    byte[] decompressBytes(ByteBuffer compressed) {
+        byte[] data = new byte[compressed.remaining()];
+        compressed.get(compressed.position(), data);
+        return data;
+    }
+
+    @Override
+    public OutputStream compressing(OutputStream out) throws IOException {
+        out.write(STORE_MARKER);
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+        };
+    }
+
+    @Override
+    InputStream decompressStream(InputStream in) {
+        return in;
+    }
+}
@@ -0,0 +1,177 @@
+package com.bkcd;
+
+import com.bkcd.Objects.ObjectId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read only access to ".git/packed-refs" through a memory mapping, the same text format git uses:
+ * a header line & then one "<hex id> <ref name>\n" line per ref, sorted by the bytes of the name.
+ * Lookups bisect the mapping by byte offset & back up to the start of the line they land in, so
+ * neither opening the file nor finding a ref reads more than a few lines of it.
+ *
+ * The file only changes by being replaced through a rename, so an opened mapping is reused for as
+ * long as the file keeps its identity, the daemon keeps it across commands.
+ */
+public class PackedRefs {
+    private static final String HEADER = "# pack-refs with: sorted \n";
+    private static final PackedRefs EMPTY = new PackedRefs(null, null);
+    private static final ConcurrentHashMap<Path, PackedRefs> openFiles = new ConcurrentHashMap<>();
+
+    private final MappedByteBuffer buffer;
+    private final BasicFileAttributes fileAttributes;
+    private final int start;
+    private final int limit;
+
+    private PackedRefs(MappedByteBuffer buffer, BasicFileAttributes fileAttributes) {
+        this.buffer = buffer;
+        this.fileAttributes = fileAttributes;
+        this.limit = (buffer == null) ? 0 : buffer.capacity();
+
+        //Header & comment lines are skipped once, everything after them is a ref line
+        int position = 0;
+        while(position < limit && buffer.get(position) == '#') {
+            position = nextLine(position);
+        }
+        this.start = position;
+    }
+
+    // An empty table if there is no packed-refs file
+    public static PackedRefs open(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            openFiles.remove(path);
+            return EMPTY;
+        }
+
+        PackedRefs cached = openFiles.get(path);
+        if(cached != null && cached.fileAttributes.fileKey() != null && cached.fileAttributes.fileKey().equals(attributes.fileKey())
+                && cached.fileAttributes.size() == attributes.size()
+                && cached.fileAttributes.lastModifiedTime().equals(attributes.lastModifiedTime())) {
+            return cached;
+        }
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        PackedRefs packedRefs = new PackedRefs(buffer, attributes);
+        openFiles.put(path, packedRefs);
+        return packedRefs;
+    }
+
+    // Id the ref points to, null if it isn't packed
+    public ObjectId get(String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int line = lowerBound(nameBytes);
+        if(line >= limit || compareName(line, nameBytes) != 0) return null;
+        return parseId(line);
+    }
+
+    // All packed refs whose name starts with the prefix, by name
+    public SortedMap<String, ObjectId> list(String prefix) {
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        SortedMap<String, ObjectId> refs = new TreeMap<>();
+        for(int line = lowerBound(prefixBytes); line < limit; line = nextLine(line)) {
+            String name = name(line);
+            if(!name.startsWith(prefix)) break;
+            refs.put(name, parseId(line));
+        }
+        return refs;
+    }
+
+    /**
+     * Writes the refs as the new content of the locked packed-refs file. Sorted by the bytes of
+     * their names, which for UTF-8 is the same as sorting by code points.
+     */
+    public static void write(LockFile lock, Map<String, ObjectId> refs) throws IOException {
+        TreeMap<byte[], ObjectId> sorted = new TreeMap<>(Arrays::compareUnsigned);
+        for(Map.Entry<String, ObjectId> ref : refs.entrySet()) {
+            sorted.put(ref.getKey().getBytes(StandardCharsets.UTF_8), ref.getValue());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER.length() + refs.size() * 64);
+        out.write(HEADER.getBytes(StandardCharsets.US_ASCII));
+        for(Map.Entry<byte[], ObjectId> ref : sorted.entrySet()) {
+            out.write(ref.getValue().toHex().getBytes(StandardCharsets.US_ASCII));
+            out.write(' ');
+            out.write(ref.getKey());
+            out.write('\n');
+        }
+        lock.commit(out.toByteArray());
+    }
+
+    /**
+     * Start of the first line whose name isn't smaller than the given one, limit if there is none.
+     * Low is always the start of a line, the middle is moved back to the start of its line.
+     */
+    private int lowerBound(byte[] name) {
+        int low = start;
+        int high = limit;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            while(mid > low && buffer.get(mid - 1) != '\n') mid--;
+
+            if(compareName(mid, name) < 0) {
+                low = nextLine(mid);
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compareName(int line, byte[] name) {
+        int position = nameStart(line);
+        for(int i = 0; i < name.length; i++, position++) {
+            if(position >= limit || buffer.get(position) == '\n') return -1;
+            int cmp = Byte.compareUnsigned(buffer.get(position), name[i]);
+            if(cmp != 0) return cmp;
+        }
+        return (position >= limit || buffer.get(position) == '\n') ? 0 : 1;
+    }
+
+    private String name(int line) {
+        int from = nameStart(line);
+        int to = from;
+        while(to < limit && buffer.get(to) != '\n') to++;
+
+        byte[] name = new byte[to - from];
+        buffer.get(from, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private ObjectId parseId(int line) {
+        byte[] hex = new byte[nameStart(line) - 1 - line];
+        buffer.get(line, hex);
+        return ObjectId.fromHex(new String(hex, StandardCharsets.US_ASCII));
+    }
+
+    private int nameStart(int line) {
+        int position = line;
+        while(position < limit && buffer.get(position) != ' ') position++;
+        return position + 1;
+    }
+
+    private int nextLine(int line) {
+        int position = line;
+        while(position < limit && buffer.get(position) != '\n') position++;
+        return Math.min(position + 1, limit);
+    }
+}
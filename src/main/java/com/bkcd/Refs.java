@@ -1,35 +1,94 @@
 package com.bkcd;
 
+import com.bkcd.Objects.ObjectId;
+
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
 
+/**
+ * Branches & HEAD. Every write goes through a lock file that is renamed over the ref, so readers
+ * always see either the old or the new content & never wait. Moving a branch is a compare & swap
+ * under the lock: it only happens while the branch still points where the caller last saw it.
+ *
+ * A branch is either a loose file under refs/heads or a line in packed-refs, a loose file takes
+ * precedence over the packed line. Branches are only ever written as loose files, gc moves them
+ * into packed-refs. HEAD & every resolved ref are cached, so an instance is meant to live for
+ * one command, changes made through it update the cache.
+ */
 public class Refs {
+    private static final String HEADS = "refs/heads/";
+
     private final String gitFolder;
+    private String head = null;
+    private final HashMap<String, ObjectId> resolved = new HashMap<>();
 
     public Refs(String folder) {
         this.gitFolder = folder;
     }
 
     public void createBranch(String name) throws IOException {
-        Path currentHead = Path.of(gitFolder, retrieveHead());
-        String id = Files.exists(currentHead) ? Files.readString(currentHead) : "";
-        try {
-            Files.writeString(Path.of(gitFolder, "refs/heads", name), id);
+        ObjectId head = headCommit();
+        Path refPath = Path.of(gitFolder, HEADS + name);
+        //Names like "feature/x" group branches in directories
+        Files.createDirectories(refPath.getParent());
+        try (LockFile lock = LockFile.acquire(refPath)) {
+            lock.commit((head == null) ? new byte[0] : head.toHex().getBytes(StandardCharsets.US_ASCII));
+            resolved.put(HEADS + name, head);
         } catch (IOException e) {
             System.out.println("Unable to create new branch");
         }
     }
 
-    public void updateRef(String id) throws IOException {
-        Path refPath = Path.of(gitFolder, retrieveHead());
-        Files.writeString(refPath, id);
+    /**
+     * Points the current branch at the new commit, provided it still points at the expected one,
+     * null for a branch without commits. Returns false if another process moved it in the meantime.
+     */
+    public boolean updateRef(ObjectId expectedId, ObjectId newId) throws IOException {
+        return compareAndSet(retrieveHead(), expectedId, newId);
     }
 
-    public void updateHead(String refPath) {
-        if(Files.exists(Path.of(refPath))) {
-            try {
-                Files.writeString(Path.of(gitFolder, "HEAD"), refPath);
+    // Same as updateRef for a named branch, which is created if the expected id is null & it doesn't exist
+    public boolean updateBranch(String name, ObjectId expectedId, ObjectId newId) throws IOException {
+        Path refPath = Path.of(gitFolder, HEADS + name);
+        Files.createDirectories(refPath.getParent());
+        return compareAndSet(HEADS + name, expectedId, newId);
+    }
+
+    private boolean compareAndSet(String refName, ObjectId expectedId, ObjectId newId) throws IOException {
+        try (LockFile lock = LockFile.acquire(Path.of(gitFolder, refName))) {
+            //Read again under the lock, the cached value may be outdated by now
+            if(!Objects.equals(readRef(refName), expectedId)) return false;
+            lock.commit(newId.toHex().getBytes(StandardCharsets.US_ASCII));
+            resolved.put(refName, newId);
+            return true;
+        }
+    }
+
+    // A branch without commits only exists as an empty loose file
+    public boolean branchExists(String name) throws IOException {
+        return refExists(HEADS + name);
+    }
+
+    private boolean refExists(String refName) throws IOException {
+        return Files.isRegularFile(Path.of(gitFolder, refName)) || packedRefs().get(refName) != null;
+    }
+
+    public void updateHead(String refPath) throws IOException {
+        if(refExists(refPath)) {
+            try (LockFile lock = LockFile.acquire(Path.of(gitFolder, "HEAD"))) {
+                lock.commit(refPath.getBytes(StandardCharsets.UTF_8));
+                head = refPath;
             } catch (IOException e) {
                 System.out.println("Unable to update HEAD");
             }
@@ -38,9 +97,120 @@ public class Refs {
         }
     }
 
+    // Commit ids every branch currently points to, branches without commits are skipped
+    public List<String> branchHeads() throws IOException {
+        List<String> heads = new ArrayList<>();
+        for(ObjectId id : listBranches("").values()) {
+            if(id != null) heads.add(id.toHex());
+        }
+        return heads;
+    }
+
+    /**
+     * Branches whose name starts with the prefix & the commit each points to, null for a branch
+     * without commits. Packed branches are found with a binary search for the prefix, loose ones
+     * are only looked for in the directory the prefix leads to.
+     */
+    public SortedMap<String, ObjectId> listBranches(String prefix) throws IOException {
+        SortedMap<String, ObjectId> branches = new TreeMap<>();
+        for(Map.Entry<String, ObjectId> ref : packedRefs().list(HEADS + prefix).entrySet()) {
+            branches.put(ref.getKey().substring(HEADS.length()), ref.getValue());
+        }
+
+        Path headsPath = Path.of(gitFolder, HEADS);
+        Path searchPath = prefix.contains("/") ? headsPath.resolve(prefix.substring(0, prefix.lastIndexOf('/'))) : headsPath;
+        if(!Files.isDirectory(searchPath)) return branches;
+
+        try (Stream<Path> files = Files.walk(searchPath)) {
+            for(Path file : files.filter(Files::isRegularFile).toList()) {
+                String name = headsPath.relativize(file).toString();
+                if(!name.startsWith(prefix) || name.endsWith(".lock")) continue;
+                try {
+                    branches.put(name, parseId(Files.readString(file)));
+                } catch (NoSuchFileException e) {
+                    //Packed by gc since the walk found it, the packed line is already listed
+                }
+            }
+        }
+        return branches;
+    }
+
+    /**
+     * Writes every loose branch into packed-refs. A loose file is only deleted afterwards if it
+     * still holds the packed id, a branch moved in the meantime stays loose & keeps overriding it.
+     * Branches without commits have nothing to pack & stay loose. Returns the number of packed refs.
+     */
+    @SuppressWarnings("try")
+    public int packRefs() throws IOException {
+        Map<String, ObjectId> loose = new HashMap<>();
+        try (LockFile lock = LockFile.acquire(Path.of(gitFolder, "packed-refs"))) {
+            Map<String, ObjectId> packed = new HashMap<>(packedRefs().list(HEADS));
+            for(Map.Entry<String, ObjectId> branch : listBranches("").entrySet()) {
+                if(branch.getValue() == null) continue;
+                loose.put(HEADS + branch.getKey(), branch.getValue());
+            }
+            packed.putAll(loose);
+            PackedRefs.write(lock, packed);
+
+            for(Map.Entry<String, ObjectId> ref : loose.entrySet()) {
+                Path refPath = Path.of(gitFolder, ref.getKey());
+                if(!Files.isRegularFile(refPath)) continue;
+                try (LockFile refLock = LockFile.acquire(refPath)) {
+                    if(ref.getValue().equals(parseId(Files.readString(refPath)))) Files.delete(refPath);
+                } catch (NoSuchFileException e) {
+                    //Nothing left to delete
+                }
+            }
+            return packed.size();
+        }
+    }
+
+    /**
+     * Commit a name refers to: HEAD, a branch name or a full commit id.
+     * Returns null for a branch without commits or a name that doesn't exist.
+     */
+    public ObjectId resolve(String name) throws IOException {
+        if(name.equals("HEAD")) return headCommit();
+        if(ObjectId.isHex(name)) return ObjectId.fromHex(name);
+        return cachedRef(HEADS + name);
+    }
+
+    // Commit the current branch points to, null before its first commit
+    public ObjectId headCommit() throws IOException {
+        return cachedRef(retrieveHead());
+    }
+
+    private ObjectId cachedRef(String refName) throws IOException {
+        if(resolved.containsKey(refName)) return resolved.get(refName);
+        ObjectId id = readRef(refName);
+        resolved.put(refName, id);
+        return id;
+    }
+
+    private ObjectId readRef(String refName) throws IOException {
+        try {
+            return parseId(Files.readString(Path.of(gitFolder, refName)));
+        } catch (NoSuchFileException e) {
+            //Not a loose ref, or one gc has packed since
+            return packedRefs().get(refName);
+        }
+    }
+
+    // Content of a loose ref, null for a branch without commits
+    private static ObjectId parseId(String content) {
+        String id = content.trim();
+        return ObjectId.isHex(id) ? ObjectId.fromHex(id) : null;
+    }
+
+    private PackedRefs packedRefs() throws IOException {
+        return PackedRefs.open(Path.of(gitFolder, "packed-refs"));
+    }
+
     public String retrieveHead() {
+        if(head != null) return head;
         try {
-            return Files.readString(Path.of(gitFolder, "HEAD"));
+            head = Files.readString(Path.of(gitFolder, "HEAD"));
+            return head;
         } catch (IOException e) {
             System.out.println("Unable to retrieve HEAD");
             return null;
@@ -0,0 +1,185 @@
+package com.bkcd;
+
+import com.bkcd.Objects.ObjectId;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stages files for the add command. The walk runs on the calling thread and hands every
+ * regular file to a fixed pool of workers, each of which reads, hashes, compresses & writes
+ * one blob. The work queue is bounded so a fast walk can never run ahead of the workers by
+ * more than a few files per thread, once it is full the walking thread stages the file itself.
+ */
+public class StagingPipeline {
+    private static final int QUEUE_SLOTS_PER_JOB = 4;
+
+    private interface Producer {
+        void submit(ThreadPoolExecutor workers) throws IOException;
+    }
+
+    private final Path repoPath;
+    private final ObjectStore storage;
+    private final int jobs;
+    private final Index statCache;
+    private final IgnoreRules ignoreRules;
+
+    private final ConcurrentHashMap<String, Index.StagedFile> stagedEntries = new ConcurrentHashMap<>();
+    private final AtomicLong stagedBytes = new AtomicLong();
+    private final AtomicLong unchangedFiles = new AtomicLong();
+    private final AtomicReference<IOException> writeFailure = new AtomicReference<>();
+
+    /**
+     * The index passed in is used as a stat cache, files whose stat data still matches their
+     * index entry are skipped entirely & keep the blobId already present in the index.
+     */
+    public StagingPipeline(Path repoPath, ObjectStore storage, Index statCache, int jobs) {
+        this.repoPath = repoPath;
+        this.storage = storage;
+        this.statCache = statCache;
+        this.ignoreRules = new IgnoreRules(repoPath);
+        this.jobs = Math.max(1, jobs);
+    }
+
+    /**
+     * Walks each of the given paths & stores a blob for every regular file found. Ignored
+     * directories aren't entered, ignored files are only staged if they are tracked already.
+     * Returns the staged entries keyed by their path relative to the repo.
+     */
+    public HashMap<String, Index.StagedFile> stage(List<Path> paths) throws IOException {
+        return run(workers -> {
+            for (Path path : paths) {
+                //The walk must not enter .git at all, object temp files come & go while staging.
+                Files.walkFileTree(path, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                        return dir.equals(repoPath.resolve(".git")) || ignoreRules.isIgnored(dir, true)
+                                ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path filePath, BasicFileAttributes attrs) throws IOException {
+                        if(ignoreRules.isIgnored(filePath, false) && !statCache.isTracked(repoPath.relativize(filePath).toString())) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        workers.execute(() -> stageFile(filePath));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path filePath, IOException e) {
+                        System.err.println("Unable to read file: " + filePath);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        });
+    }
+
+    // Stages exactly the given files, used when a file system monitor already knows which files changed
+    public HashMap<String, Index.StagedFile> stageFiles(List<Path> files) throws IOException {
+        return run(workers -> {
+            for(Path file : files) {
+                workers.execute(() -> stageFile(file));
+            }
+        });
+    }
+
+    // Runs the producer on the calling thread while the workers stage what it hands them
+    private HashMap<String, Index.StagedFile> run(Producer producer) throws IOException {
+        Trace.Span span = Trace.span("stage");
+        try {
+            ThreadPoolExecutor workers = new ThreadPoolExecutor(jobs, jobs, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(jobs * QUEUE_SLOTS_PER_JOB),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            long startTime = System.nanoTime();
+
+            try {
+                producer.submit(workers);
+            } finally {
+                workers.shutdown();
+                awaitWorkers(workers);
+            }
+
+            if (writeFailure.get() != null) {
+                throw writeFailure.get();
+            }
+
+            reportThroughput(System.nanoTime() - startTime);
+
+            /**
+             * Entries are sorted again while writing the index, so arrival order of workers doesn't matter.
+             * Unchanged files are not part of the result, their existing index entries are reused as is.
+             */
+            return new HashMap<>(stagedEntries);
+        } finally {
+            span.close();
+        }
+    }
+
+    private void stageFile(Path filePath) {
+        String relativePath = repoPath.relativize(filePath).toString();
+        Map<String, Object> meta;
+        try {
+            meta = Files.readAttributes(filePath, "unix:*", LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            System.err.println("Unable to read file: " + filePath);
+            return;
+        }
+
+        if(!(Boolean) meta.get("isRegularFile")) return;
+
+        if(statCache.lookupUnchanged(relativePath, meta) != null) {
+            unchangedFiles.incrementAndGet();
+            return;
+        }
+
+        long size = ((Number) meta.get("size")).longValue();
+        ObjectId blobId;
+        try {
+            blobId = storage.storeFile(filePath, size);
+        } catch (IOException e) {
+            System.err.println("Unable to write blob file for: " + filePath);
+            writeFailure.compareAndSet(null, e);
+            return;
+        }
+
+        stagedBytes.addAndGet(size);
+        //The stat read before hashing goes into the index, a later edit then shows up as a stat change
+        stagedEntries.put(relativePath, new Index.StagedFile(blobId, meta));
+    }
+
+    private void awaitWorkers(ThreadPoolExecutor workers) throws IOException {
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while staging files", e);
+        }
+    }
+
+    private void reportThroughput(long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        int fileCount = stagedEntries.size();
+        double megaBytes = stagedBytes.get() / (1024.0 * 1024.0);
+
+        System.out.printf("Staged %d files (%.1f MB), %d unchanged, in %d ms using %d jobs: %.0f files/s, %.1f MB/s%n",
+                fileCount, megaBytes, unchangedFiles.get(), elapsedNanos / 1_000_000, jobs,
+                fileCount / seconds, megaBytes / seconds);
+    }
+}
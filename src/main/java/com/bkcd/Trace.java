@@ -0,0 +1,131 @@
+package com.bkcd;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers & counters for finding out where a command spends its time. Tracing is off unless the
+ * --trace flag or the DELTA_TRACE env var turns it on, in that case span() returns a shared no-op
+ * span & count() returns right away, so instrumented code costs one branch.
+ *
+ * --trace or DELTA_TRACE=1 prints a summary table to stderr once the command finishes.
+ * --trace=out.json or DELTA_TRACE=out.json writes a Chrome trace-event file instead, it can be
+ * opened in chrome://tracing or Perfetto.
+ */
+public final class Trace {
+    private static volatile boolean enabled = false;
+    private static Path tracePath = null;
+    private static long startNanos;
+
+    private static final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Span NO_SPAN = () -> {};
+
+    private record Event(String name, long threadId, long startNanos, long durationNanos) {}
+
+    // Closing a span records it, done in a finally block around the timed code
+    public interface Span extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private Trace() {}
+
+    /**
+     * Turns tracing on. A value of null, "1" or "true" selects the summary table, anything else
+     * is the path the trace-event file is written to. Output happens in a shutdown hook, so
+     * commands ending in System.exit are traced too.
+     */
+    public static void enable(String output) {
+        if(enabled) return;
+
+        tracePath = (output == null || output.equals("1") || output.equals("true")) ? null : Path.of(output);
+        startNanos = System.nanoTime();
+        enabled = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(Trace::finish));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static Span span(String name) {
+        if(!enabled) return NO_SPAN;
+
+        long start = System.nanoTime();
+        long threadId = Thread.currentThread().getId();
+        return () -> events.add(new Event(name, threadId, start, System.nanoTime() - start));
+    }
+
+    public static void count(String name, long amount) {
+        if(!enabled) return;
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(amount);
+    }
+
+    private static void finish() {
+        try {
+            if(tracePath != null) {
+                writeTraceEvents(tracePath);
+                System.err.println("Trace written to " + tracePath);
+            } else {
+                printSummary(System.err);
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write trace: " + e.getMessage());
+        }
+    }
+
+    // Total, count & slowest call per span name, followed by the counters
+    private static void printSummary(PrintStream out) {
+        Map<String, long[]> totals = new TreeMap<>();
+        for(Event event : events) {
+            long[] total = totals.computeIfAbsent(event.name(), name -> new long[3]);
+            total[0]++;
+            total[1] += event.durationNanos();
+            total[2] = Math.max(total[2], event.durationNanos());
+        }
+
+        out.printf("%-28s %10s %12s %12s%n", "span", "calls", "total ms", "max ms");
+        for(Map.Entry<String, long[]> total : totals.entrySet()) {
+            long[] values = total.getValue();
+            out.printf("%-28s %10d %12.3f %12.3f%n", total.getKey(), values[0], values[1] / 1e6, values[2] / 1e6);
+        }
+
+        if(counters.isEmpty()) return;
+        out.printf("%n%-28s %10s%n", "counter", "value");
+        for(Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            out.printf("%-28s %10d%n", counter.getKey(), counter.getValue().sum());
+        }
+    }
+
+    /**
+     * Spans become complete ("X") events with microsecond timestamps relative to the start of the
+     * command, counters are added as a single counter ("C") event at the end of the trace.
+     */
+    private static void writeTraceEvents(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        long endMicros = 0;
+        for(Event event : events) {
+            long startMicros = (event.startNanos() - startNanos) / 1000;
+            endMicros = Math.max(endMicros, startMicros + event.durationNanos() / 1000);
+            lines.add(String.format("{\"name\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%d,\"dur\":%d}",
+                    event.name(), event.threadId(), startMicros, event.durationNanos() / 1000));
+        }
+
+        for(Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            lines.add(String.format("{\"name\":\"%s\",\"ph\":\"C\",\"pid\":1,\"tid\":0,\"ts\":%d,\"args\":{\"value\":%d}}",
+                    counter.getKey(), endMicros, counter.getValue().sum()));
+        }
+
+        Files.writeString(path, "{\"traceEvents\":[\n" + String.join(",\n", lines) + "\n]}\n");
+    }
+}
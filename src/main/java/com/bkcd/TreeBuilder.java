@@ -0,0 +1,78 @@
+package com.bkcd;
+
+import com.bkcd.Objects.Blob;
+import com.bkcd.Objects.ObjectId;
+import com.bkcd.Objects.Tree;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Builds the tree of a commit from the index. Directories that still have an id in the cache tree
+ * are added as already stored trees & their entries are skipped, so only the directories on the
+ * paths of changed entries are built, serialized & hashed again.
+ */
+public class TreeBuilder {
+    private final Index index;
+    private final CacheTree cacheTree;
+    private final HashMap<String, Tree> builtTrees = new HashMap<>();
+    private IndexIterator entries;
+
+    public TreeBuilder(Index index) {
+        this.index = index;
+        this.cacheTree = index.getCacheTree();
+    }
+
+    public Tree build() {
+        Trace.Span span = Trace.span("tree.build");
+        try {
+            ObjectId rootId = cacheTree.get("");
+            if(rootId != null) return Tree.existing(rootId);
+
+            entries = index.iterator();
+            return build("");
+        } finally {
+            span.close();
+        }
+    }
+
+    // Directory is either "" for the root or a path ending with "/"
+    private Tree build(String directory) {
+        Tree tree = new Tree();
+        byte[] prefix = directory.getBytes(StandardCharsets.UTF_8);
+
+        //Entries below a directory are contiguous in the sorted index
+        while(entries.hasEntry() && entries.current().startsWith(prefix)) {
+            IndexEntry entry = entries.current();
+            String relativePath = entry.path().substring(directory.length());
+            int pathSeparator = relativePath.indexOf('/');
+
+            if(pathSeparator == -1) {
+                tree.addChild(relativePath, new Blob(entry.blobId(), Integer.toOctalString(entry.mode())));
+                entries.next();
+                continue;
+            }
+
+            String name = relativePath.substring(0, pathSeparator);
+            ObjectId cachedId = cacheTree.get(directory + name);
+            if(cachedId != null) {
+                tree.addChild(name, Tree.existing(cachedId));
+                entries.skipPrefix((directory + name + "/").getBytes(StandardCharsets.UTF_8));
+            } else {
+                tree.addChild(name, build(directory + name + "/"));
+            }
+        }
+
+        builtTrees.put(directory.isEmpty() ? "" : directory.substring(0, directory.length() - 1), tree);
+        return tree;
+    }
+
+    /**
+     * Records the ids of the trees that were built, has to be called once they are generated.
+     * Returns false when every tree came from the cache & there is nothing new to record.
+     */
+    public boolean updateCacheTree() {
+        builtTrees.forEach((directory, tree) -> cacheTree.put(directory, tree.getId()));
+        return !builtTrees.isEmpty();
+    }
+}
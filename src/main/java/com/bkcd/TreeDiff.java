@@ -0,0 +1,173 @@
+package com.bkcd;
+
+import com.bkcd.Objects.ObjectId;
+import com.bkcd.Objects.Tree;
+import com.bkcd.Objects.TreeEntry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Finds the files that differ between two trees, or between the index & a tree. Subtrees with the
+ * same id on both sides are identical & are never opened, so the cost depends on the number of
+ * changed paths rather than on the size of the repo. On the index side the cache tree supplies
+ * the ids of unchanged directories, which lets whole directories be skipped in the index too.
+ */
+public class TreeDiff {
+    // Modes are the octal strings trees store, null on the side the file is missing
+    public record Change(String path, ObjectId oldId, ObjectId newId, String oldMode, String newMode) {
+        public char status() {
+            return (oldId == null) ? 'A' : (newId == null) ? 'D' : 'M';
+        }
+
+        // The content may be the same, e.g. after a file was made executable
+        public boolean modeChanged() {
+            return oldMode != null && newMode != null && !oldMode.equals(newMode);
+        }
+    }
+
+    private final ObjectStore storage;
+    private final List<Change> changes = new ArrayList<>();
+
+    public TreeDiff(ObjectStore storage) {
+        this.storage = storage;
+    }
+
+    // Either id may be null for an empty tree, e.g. before the first commit
+    public List<Change> compareTrees(ObjectId oldTreeId, ObjectId newTreeId) throws IOException {
+        Trace.Span span = Trace.span("diff.trees");
+        try {
+            changes.clear();
+            compareTrees(oldTreeId, newTreeId, "");
+            return sorted();
+        } finally {
+            span.close();
+        }
+    }
+
+    // Changes staged in the index relative to the given tree
+    public List<Change> compareIndex(ObjectId treeId, Index index) throws IOException {
+        Trace.Span span = Trace.span("diff.index");
+        try {
+            changes.clear();
+            ObjectId rootId = index.getCacheTree().get("");
+            if(rootId == null || !rootId.equals(treeId)) {
+                compareIndex(treeId, index.iterator(), index.getCacheTree(), "");
+            }
+            return sorted();
+        } finally {
+            span.close();
+        }
+    }
+
+    private void compareTrees(ObjectId oldTreeId, ObjectId newTreeId, String prefix) throws IOException {
+        if(oldTreeId != null && oldTreeId.equals(newTreeId)) return;
+
+        LinkedHashMap<String, TreeEntry> oldEntries = entries(oldTreeId);
+        for(TreeEntry newEntry : entries(newTreeId).values()) {
+            compareEntry(oldEntries.remove(newEntry.name()), newEntry, prefix);
+        }
+        for(TreeEntry oldEntry : oldEntries.values()) {
+            compareEntry(oldEntry, null, prefix);
+        }
+    }
+
+    private void compareEntry(TreeEntry oldEntry, TreeEntry newEntry, String prefix) throws IOException {
+        String path = prefix + ((newEntry != null) ? newEntry.name() : oldEntry.name());
+        ObjectId oldTree = (oldEntry != null && oldEntry.isTree()) ? oldEntry.id() : null;
+        ObjectId newTree = (newEntry != null && newEntry.isTree()) ? newEntry.id() : null;
+        TreeEntry oldBlob = (oldEntry != null && !oldEntry.isTree()) ? oldEntry : null;
+        TreeEntry newBlob = (newEntry != null && !newEntry.isTree()) ? newEntry : null;
+
+        if(oldTree != null || newTree != null) {
+            compareTrees(oldTree, newTree, path + "/");
+        }
+        if((oldBlob != null || newBlob != null) && (oldBlob == null || newBlob == null
+                || !oldBlob.id().equals(newBlob.id()) || !oldBlob.mode().equals(newBlob.mode()))) {
+            changes.add(new Change(path, (oldBlob == null) ? null : oldBlob.id(), (newBlob == null) ? null : newBlob.id(),
+                    (oldBlob == null) ? null : oldBlob.mode(), (newBlob == null) ? null : newBlob.mode()));
+        }
+    }
+
+    /**
+     * Walks the index entries below the prefix alongside the tree. Directories whose cached id
+     * matches the tree's subtree are skipped in the index without visiting their entries.
+     */
+    private void compareIndex(ObjectId treeId, IndexIterator entries, CacheTree cacheTree, String prefix) throws IOException {
+        LinkedHashMap<String, TreeEntry> treeEntries = entries(treeId);
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+
+        while(entries.hasEntry() && entries.current().startsWith(prefixBytes)) {
+            IndexEntry entry = entries.current();
+            String relativePath = entry.path().substring(prefix.length());
+            int pathSeparator = relativePath.indexOf('/');
+
+            if(pathSeparator == -1) {
+                TreeEntry treeEntry = treeEntries.remove(relativePath);
+                if(treeEntry != null && treeEntry.isTree()) {
+                    addRemoved(treeEntry, prefix + relativePath);
+                    treeEntry = null;
+                }
+                ObjectId blobId = entry.blobId();
+                String mode = Integer.toOctalString(entry.mode());
+                if(treeEntry == null || !treeEntry.id().equals(blobId) || !treeEntry.mode().equals(mode)) {
+                    changes.add(new Change(prefix + relativePath, (treeEntry == null) ? null : treeEntry.id(), blobId,
+                            (treeEntry == null) ? null : treeEntry.mode(), mode));
+                }
+                entries.next();
+                continue;
+            }
+
+            String name = relativePath.substring(0, pathSeparator);
+            TreeEntry treeEntry = treeEntries.remove(name);
+            if(treeEntry != null && !treeEntry.isTree()) {
+                changes.add(new Change(prefix + name, treeEntry.id(), null, treeEntry.mode(), null));
+                treeEntry = null;
+            }
+
+            ObjectId subtreeId = (treeEntry == null) ? null : treeEntry.id();
+            ObjectId cachedId = cacheTree.get(prefix + name);
+            if(cachedId != null && cachedId.equals(subtreeId)) {
+                entries.skipPrefix((prefix + name + "/").getBytes(StandardCharsets.UTF_8));
+            } else {
+                compareIndex(subtreeId, entries, cacheTree, prefix + name + "/");
+            }
+        }
+
+        //Whatever is left in the tree isn't in the index anymore
+        for(TreeEntry treeEntry : treeEntries.values()) {
+            addRemoved(treeEntry, prefix + treeEntry.name());
+        }
+    }
+
+    // Records every file at or below the tree entry as removed
+    private void addRemoved(TreeEntry entry, String path) throws IOException {
+        if(!entry.isTree()) {
+            changes.add(new Change(path, entry.id(), null, entry.mode(), null));
+            return;
+        }
+        for(TreeEntry child : entries(entry.id()).values()) {
+            addRemoved(child, path + "/" + child.name());
+        }
+    }
+
+    private LinkedHashMap<String, TreeEntry> entries(ObjectId treeId) throws IOException {
+        LinkedHashMap<String, TreeEntry> entries = new LinkedHashMap<>();
+        if(treeId == null) return entries;
+
+        for(TreeEntry entry : Tree.parseEntries(storage.reader().body(treeId))) {
+            entries.put(entry.name(), entry);
+        }
+        return entries;
+    }
+
+    private List<Change> sorted() {
+        List<Change> result = new ArrayList<>(changes);
+        result.sort(Comparator.comparing(Change::path));
+        return result;
+    }
+}
@@ -0,0 +1,240 @@
+package com.bkcd;
+
+import com.bkcd.Objects.Hashing;
+import com.bkcd.Objects.ObjectId;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the workspace with the index. Tracked files are stat-ed in parallel & only those whose
+ * stat data no longer matches their index entry are hashed, nothing is written to the store.
+ * With a file system monitor running only the paths it reported since the last scan are looked at.
+ */
+public class WorkspaceScanner {
+    private static final Comparator<String> PATH_ORDER = Comparator.comparing(path -> path.getBytes(StandardCharsets.UTF_8), Arrays::compareUnsigned);
+
+    public record Result(List<TreeDiff.Change> changes, List<String> untracked) {}
+
+    private final Path repoPath;
+    private final Hashing.ObjectFormat objectFormat;
+    private final int jobs;
+    private final IgnoreRules ignoreRules;
+
+    // Files are hashed with the repo's object format to compare them with the index
+    public WorkspaceScanner(Path repoPath, Hashing.ObjectFormat objectFormat, int jobs) {
+        this.repoPath = repoPath;
+        this.objectFormat = objectFormat;
+        this.jobs = Math.max(1, jobs);
+        this.ignoreRules = new IgnoreRules(repoPath);
+    }
+
+    /**
+     * Modified, deleted & untracked files. The monitor's token is taken before any file is looked at,
+     * so whatever changes during the scan is reported again next time. Without a monitor, without a
+     * stored state or when the monitor lost events since the state was written the whole workspace is
+     * scanned. The result is stored in the index for the next command whenever a monitor is running.
+     */
+    public Result scan(Index index, FsMonitor monitor) throws IOException {
+        String token = (monitor == null) ? null : monitor.sync();
+        Set<String> candidates = (token == null) ? null : candidates(index, monitor);
+
+        Result result;
+        if(candidates == null) {
+            result = new Result(compareIndex(index), untracked(index));
+        } else {
+            Trace.Span span = Trace.span("workspace.scan_reported");
+            try {
+                result = scanCandidates(index, candidates);
+            } finally {
+                span.close();
+            }
+            Trace.count("workspace.candidates", candidates.size());
+        }
+
+        MonitorState state = index.getMonitorState();
+        if(token != null && (state == null || !token.equals(state.getToken()))) {
+            List<String> dirty = new ArrayList<>();
+            result.changes().forEach(change -> dirty.add(change.path()));
+            index.writeMonitorState(new MonitorState(token, dirty, result.untracked()));
+        }
+        return result;
+    }
+
+    /**
+     * Paths that may differ from the index: those the monitor reported since the stored state was
+     * written & those the state listed as dirty or untracked. Reported paths include directories.
+     * Null when every file has to be looked at, which includes a changed ignore file as it may
+     * have un-ignored files the state doesn't know about. The monitor has to be synced before.
+     */
+    public Set<String> candidates(Index index, FsMonitor monitor) {
+        MonitorState state = index.getMonitorState();
+        Set<String> candidates = (state == null) ? null : monitor.changedSince(state.getToken());
+        if(candidates == null) return null;
+        if(candidates.stream().anyMatch(path -> path.equals(IgnoreRules.FILE_NAME) || path.endsWith("/" + IgnoreRules.FILE_NAME))) return null;
+
+        candidates.addAll(state.getDirty());
+        candidates.addAll(state.getUntracked());
+        return candidates;
+    }
+
+    /**
+     * Candidates that are tracked are compared with their entry, other regular files are untracked.
+     * Anything else may be a directory that was removed or moved away, tracked entries below it are
+     * found in a single pass over the index.
+     */
+    private Result scanCandidates(Index index, Set<String> candidates) throws IOException {
+        Map<String, ObjectId> tracked = new HashMap<>();
+        Set<String> directories = new HashSet<>();
+        List<String> untracked = new ArrayList<>();
+        for(String path : candidates) {
+            ObjectId blobId = index.lookupId(path);
+            if(blobId != null) {
+                tracked.put(path, blobId);
+            } else if(Files.isRegularFile(repoPath.resolve(path), LinkOption.NOFOLLOW_LINKS)) {
+                if(!ignoreRules.isExcluded(path)) untracked.add(path);
+            } else {
+                directories.add(path);
+            }
+        }
+
+        if(!directories.isEmpty()) {
+            for(IndexIterator entries = index.iterator(); entries.hasEntry(); entries.next()) {
+                String path = entries.current().path();
+                for(int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+                    if(directories.contains(path.substring(0, slash))) {
+                        tracked.put(path, entries.current().blobId());
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<String> paths = new ArrayList<>(tracked.keySet());
+        paths.sort(PATH_ORDER);
+        List<ObjectId> blobIds = new ArrayList<>(paths.size());
+        paths.forEach(path -> blobIds.add(tracked.get(path)));
+
+        untracked.sort(PATH_ORDER);
+        return new Result(compareFiles(index, paths, blobIds), untracked);
+    }
+
+    // Tracked files that were modified or deleted since they were staged
+    public List<TreeDiff.Change> compareIndex(Index index) throws IOException {
+        Trace.Span span = Trace.span("workspace.compare");
+        try {
+            List<String> paths = new ArrayList<>();
+            List<ObjectId> blobIds = new ArrayList<>();
+            for(IndexIterator entries = index.iterator(); entries.hasEntry(); entries.next()) {
+                paths.add(entries.current().path());
+                blobIds.add(entries.current().blobId());
+            }
+            return compareFiles(index, paths, blobIds);
+        } finally {
+            span.close();
+        }
+    }
+
+    private List<TreeDiff.Change> compareFiles(Index index, List<String> paths, List<ObjectId> blobIds) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(jobs);
+        try {
+            List<Future<TreeDiff.Change>> results = new ArrayList<>(paths.size());
+            for(int i = 0; i < paths.size(); i++) {
+                String path = paths.get(i);
+                ObjectId blobId = blobIds.get(i);
+                results.add(workers.submit(() -> compareFile(index, path, blobId)));
+            }
+
+            List<TreeDiff.Change> changes = new ArrayList<>();
+            for(Future<TreeDiff.Change> result : results) {
+                TreeDiff.Change change = result.get();
+                if(change != null) changes.add(change);
+            }
+            return changes;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to scan workspace", e);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private TreeDiff.Change compareFile(Index index, String path, ObjectId blobId) throws IOException {
+        Path filePath = repoPath.resolve(path);
+        Map<String, Object> meta;
+        try {
+            meta = Files.readAttributes(filePath, "unix:*", LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            meta = null;
+        } catch (FileSystemException e) {
+            //A file in place of a parent directory, nothing can exist below it
+            if(Files.isDirectory(filePath.getParent())) throw e;
+            meta = null;
+        }
+
+        //A directory or link in place of the file means the file itself is gone
+        if(meta == null || !(Boolean) meta.get("isRegularFile")) {
+            return new TreeDiff.Change(path, blobId, null, Integer.toOctalString(index.lookupMode(path)), null);
+        }
+
+        //A chmod changes the ctime, so an unchanged stat means an unchanged mode too
+        if(index.lookupUnchanged(path, meta) != null) return null;
+
+        String stagedMode = Integer.toOctalString(index.lookupMode(path));
+        String currentMode = Integer.toOctalString(Index.fileMode(meta));
+
+        ObjectId currentId = Hashing.hashFile(objectFormat, filePath, ((Number) meta.get("size")).longValue());
+        if(currentId.equals(blobId) && stagedMode.equals(currentMode)) return null;
+        return new TreeDiff.Change(path, blobId, currentId, stagedMode, currentMode);
+    }
+
+    // Files in the workspace that are neither part of the index nor ignored, relative to the repo
+    public List<String> untracked(Index index) throws IOException {
+        Trace.Span span = Trace.span("workspace.untracked");
+        try {
+            List<String> untracked = new ArrayList<>();
+            Files.walkFileTree(repoPath, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    return dir.equals(repoPath.resolve(".git")) || ignoreRules.isIgnored(dir, true)
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path filePath, BasicFileAttributes attrs) throws IOException {
+                    String path = repoPath.relativize(filePath).toString();
+                    if(!index.isTracked(path) && !ignoreRules.isIgnored(filePath, false)) untracked.add(path);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path filePath, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            untracked.sort(PATH_ORDER);
+            return untracked;
+        } finally {
+            span.close();
+        }
+    }
+}